@@ -0,0 +1,201 @@
+package com.sreemat.ldap.bulk;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.util.LDIFWriter;
+import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.dao.LdapDAO;
+import com.sreemat.ldap.dao.LdapSearchIterator;
+import com.sreemat.ldap.dto.JsonStreamWriter;
+import com.sreemat.ldap.utils.Dn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams the organizations, groups, admin groups and members of a branch to an output stream,
+ * as LDIF (readable by BulkImporter) or as JSON Lines. SUPER_ADMIN_GROUP is left out: it is not
+ * part of any organization and is not managed through imports.
+ *
+ * The branch is read with one paged subtree search straight from LDAP (never the replica, which
+ * would materialize the result) and every entry is written as soon as it arrives, so memory stays
+ * constant in the number of entries; only the member values of the current group are held.
+ *
+ * JSON Lines output has one object per line:
+ *   {"type":"org","dn":...,"name":...,"parentDn":...}
+ *   {"type":"group","dn":...,"name":...,"orgDn":...,"members":[uid,...]}
+ *   {"type":"adminGroup","dn":...,"name":...,"adminOf":...,"members":[uid,...]}
+ */
+public class BranchExporter {
+    
+    /**
+     * Output format
+     */
+    public enum Format {
+        LDIF,
+        JSONL
+    }
+    
+    private static final String EXPORT_FILTER = "(|" + LdapConstants.SEARCH_OU_FILTER
+        + LdapConstants.SEARCH_GROUP_FILTER + ")";
+    
+    private static final String[] EXPORT_ATTRS = {
+        LdapConstants.ATTR_OBJECT_CLASS,
+        LdapConstants.ATTR_OU,
+        LdapConstants.ATTR_CN,
+        LdapConstants.ATTR_MEMBER
+    };
+    
+    private final LdapDAO ldapDAO = new LdapDAO(false);
+    
+    /**
+     * Write every entry below a branch ("internal" or "external") and return how many were written.
+     * The output stream is flushed, not closed. If the search ends early an IOException is thrown
+     * after the entries read so far were written, so the output must then be discarded.
+     */
+    public long export(String branch, Format format, OutputStream out) throws IOException {
+        String branchDN = ldapDAO.getBranchDN(branch);
+        if (branchDN == null) {
+            throw new IllegalArgumentException("Invalid branch: " + branch);
+        }
+        
+        long count = 0;
+        try (LdapSearchIterator entries = ldapDAO.searchPaged(branchDN, LDAPConnection.SCOPE_SUB,
+                EXPORT_FILTER, EXPORT_ATTRS)) {
+            if (format == Format.LDIF) {
+                LDIFWriter writer = new LDIFWriter(out);
+                while (entries.hasNext()) {
+                    LDAPEntry entry = entries.next();
+                    if (isExported(entry, branchDN)) {
+                        writer.writeEntry(withoutPlaceholder(entry));
+                        count++;
+                    }
+                }
+                writer.finish();
+            } else {
+                JsonGenerator json = JsonStreamWriter.createGenerator(out);
+                // One object per line: the newline is written after each entry, not Jackson's space
+                json.setRootValueSeparator(null);
+                while (entries.hasNext()) {
+                    LDAPEntry entry = entries.next();
+                    if (isExported(entry, branchDN) && writeJson(json, entry)) {
+                        count++;
+                    }
+                }
+                json.flush();
+            }
+            
+            if (entries.getFailure() != null) {
+                throw new IOException("Export of " + branchDN + " incomplete after " + count + " entries",
+                    entries.getFailure());
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Check if the entry is part of the export (not the branch itself, nor SUPER_ADMIN_GROUP)
+     */
+    private static boolean isExported(LDAPEntry entry, String branchDN) {
+        String entryDN = entry.getDN();
+        return !entryDN.equalsIgnoreCase(branchDN) && !entryDN.equalsIgnoreCase(LdapConstants.SUPER_ADMIN_GROUP);
+    }
+    
+    /**
+     * Copy of an entry without the empty groupOfNames placeholder member, which LDIFReader cannot
+     * read back ("a field contains no value"); groups get a new placeholder when they are imported
+     */
+    private static LDAPEntry withoutPlaceholder(LDAPEntry entry) {
+        LDAPAttribute memberAttr = entry.getAttribute(LdapConstants.ATTR_MEMBER);
+        if (memberAttr == null) {
+            return entry;
+        }
+        
+        LDAPAttributeSet attributes = new LDAPAttributeSet();
+        for (Object attribute : entry.getAttributeSet()) {
+            if (attribute != memberAttr) {
+                attributes.add(attribute);
+            }
+        }
+        LDAPAttribute members = new LDAPAttribute(LdapConstants.ATTR_MEMBER);
+        for (String member : memberAttr.getStringValueArray()) {
+            if (!member.isEmpty()) {
+                members.addValue(member);
+            }
+        }
+        if (members.size() > 0) {
+            attributes.add(members);
+        }
+        return new LDAPEntry(entry.getDN(), attributes);
+    }
+    
+    /**
+     * Write one entry as a JSON line, returning false for entries that are not exported
+     * ("ou=groups" containers, which only hold groups)
+     */
+    private static boolean writeJson(JsonGenerator json, LDAPEntry entry) throws IOException {
+        String entryDN = entry.getDN();
+        Dn dn = Dn.parse(entryDN);
+        if (dn == null) {
+            return false;
+        }
+        
+        if (ImportReader.hasObjectClass(entry, LdapConstants.ORGANIZATIONAL_UNIT)) {
+            if (dn.isGroupsContainer()) {
+                return false;
+            }
+            json.writeStartObject();
+            json.writeStringField("type", "org");
+            json.writeStringField("dn", entryDN);
+            json.writeStringField("name", dn.value());
+            json.writeStringField("parentDn", dn.parent().toString());
+            json.writeEndObject();
+            json.writeRaw('\n');
+            return true;
+        }
+        
+        if (!ImportReader.hasObjectClass(entry, LdapConstants.GROUP_OF_NAMES)) {
+            return false;
+        }
+        
+        json.writeStartObject();
+        boolean adminGroup = dn.rdnIs(0, LdapConstants.ATTR_CN, LdapConstants.DOMAIN_ADMIN_CN)
+            || dn.rdnIs(0, LdapConstants.ATTR_CN, LdapConstants.GROUP_ADMIN_CN);
+        if (adminGroup) {
+            json.writeStringField("type", "adminGroup");
+            json.writeStringField("dn", entryDN);
+            json.writeStringField("name", dn.value());
+            json.writeStringField("adminOf", dn.parent().toString());
+        } else {
+            // Groups live in "ou=groups,<orgDN>"
+            Dn orgDN = dn.size() > 2 ? dn.parent().parent() : null;
+            json.writeStringField("type", "group");
+            json.writeStringField("dn", entryDN);
+            json.writeStringField("name", dn.value());
+            json.writeStringField("orgDn", orgDN != null ? orgDN.toString() : null);
+        }
+        
+        json.writeArrayFieldStart("members");
+        LDAPAttribute memberAttr = entry.getAttribute(LdapConstants.ATTR_MEMBER);
+        if (memberAttr != null) {
+            for (String member : memberAttr.getStringValueArray()) {
+                // groupOfNames placeholder
+                if (member.isEmpty()) {
+                    continue;
+                }
+                Dn memberDN = Dn.parse(member);
+                // Members are "uid=<uid>,<groupDN>"; anything else is written as the full DN
+                json.writeString(memberDN != null && memberDN.isType(LdapConstants.ATTR_UID)
+                    ? memberDN.value() : member);
+            }
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+        json.writeRaw('\n');
+        return true;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,386 @@
+package com.sreemat.ldap.bulk;
+
+import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.dao.LdapFanOut;
+import com.sreemat.ldap.dto.MemberResult;
+import com.sreemat.ldap.manager.GroupManager;
+import com.sreemat.ldap.manager.OrgManager;
+import com.sreemat.ldap.utils.Dn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Imports organization trees, groups, admins and members in bulk, through OrgManager and
+ * GroupManager so imported entries look exactly like ones created over the API.
+ *
+ * Operations are grouped by top-level organization. Each subtree is applied on its own, parents
+ * first (organizations by depth, then groups, then admins and members, members of a group in one
+ * bulk call), and independent subtrees run in parallel on the import's own threads. Their number
+ * is set by the "ldap.import.parallelism" system property and defaults to half of LdapFanOut's
+ * parallelism, so an import never takes the fan-out threads or most of the connection pool away
+ * from interactive requests. Entries that already exist count as unchanged, and everything below
+ * an entry that could not be created fails without being tried.
+ *
+ * With a checkpoint file, the key of every completed operation is appended to it; a later run
+ * with the same file skips those operations, so an interrupted import can simply be run again.
+ */
+public class BulkImporter {
+    
+    /**
+     * Input format
+     */
+    public enum Format {
+        LDIF,
+        CSV
+    }
+    
+    // Report progress every this many operations
+    private static final int PROGRESS_EVERY = 500;
+    
+    // Subtrees applied at once
+    private static final int PARALLELISM = Integer.getInteger("ldap.import.parallelism",
+        Math.max(1, LdapFanOut.getParallelism() / 2));
+    
+    private static final Comparator<ImportRecord> APPLY_ORDER = Comparator
+        .comparing(ImportRecord::getType)
+        .thenComparingInt(record -> record.getTarget().size())
+        .thenComparing(ImportRecord::getNormalizedDN);
+    
+    private final OrgManager orgManager = new OrgManager();
+    private final GroupManager groupManager = new GroupManager();
+    private final Path checkpoint;
+    private final Consumer<ImportProgress> progressListener;
+    
+    /**
+     * @param checkpoint file of completed operation keys, or null for a one-shot import
+     * @param progressListener called periodically and once at the end, or null
+     */
+    public BulkImporter(Path checkpoint, Consumer<ImportProgress> progressListener) {
+        this.checkpoint = checkpoint;
+        this.progressListener = progressListener;
+    }
+    
+    /**
+     * Read the whole input, then apply it. Malformed input fails before anything is written.
+     */
+    public ImportProgress run(InputStream in, Format format) throws IOException {
+        List<String> skipped = new ArrayList<>();
+        List<ImportRecord> records = format == Format.LDIF ? ImportReader.readLdif(in, skipped) : ImportReader.readCsv(in);
+        
+        Set<String> completed = new HashSet<>();
+        if (checkpoint != null && Files.exists(checkpoint)) {
+            completed.addAll(Files.readAllLines(checkpoint, StandardCharsets.UTF_8));
+        }
+        
+        // Drop operations listed twice, and group the rest by the top-level organization they fall under
+        Map<String, ImportRecord> unique = new LinkedHashMap<>();
+        for (ImportRecord record : records) {
+            unique.putIfAbsent(record.key(), record);
+        }
+        
+        ImportProgress progress = new ImportProgress(unique.size());
+        progress.skipped(skipped);
+        Map<String, List<ImportRecord>> subtrees = new LinkedHashMap<>();
+        for (ImportRecord record : unique.values()) {
+            if (completed.contains(record.key())) {
+                progress.resumed(1);
+            } else {
+                subtrees.computeIfAbsent(topLevelOrgOf(record.getTarget()), key -> new ArrayList<>()).add(record);
+            }
+        }
+        
+        ExecutorService executor = createExecutor(Math.min(PARALLELISM, Math.max(1, subtrees.size())));
+        try (Run run = new Run(progress)) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>(subtrees.size());
+            for (List<ImportRecord> subtree : subtrees.values()) {
+                futures.add(CompletableFuture.runAsync(() -> run.applySubtree(subtree), executor));
+            }
+            
+            // Let every subtree finish before the checkpoint is closed, then report the first error
+            RuntimeException failure = null;
+            for (CompletableFuture<Void> future : futures) {
+                try {
+                    future.join();
+                } catch (CompletionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        if (progressListener != null) {
+            progressListener.accept(progress);
+        }
+        return progress;
+    }
+    
+    /**
+     * DN (lower case) of the organization directly below the branch that contains the given DN
+     */
+    private static String topLevelOrgOf(Dn dn) {
+        for (Dn current = dn; current != null; current = current.parent()) {
+            Dn parent = current.parent();
+            if (parent != null && isBranch(parent)) {
+                return current.normalized();
+            }
+        }
+        return dn.normalized();
+    }
+    
+    private static ExecutorService createExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ldap-import-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    private static boolean isBranch(Dn dn) {
+        return dn.equalsIgnoreCase(LdapConstants.INTERNAL_GROUPS) || dn.equalsIgnoreCase(LdapConstants.EXTERNAL_GROUPS);
+    }
+    
+    /**
+     * State of one import run: progress, and the checkpoint being appended to
+     */
+    private final class Run implements AutoCloseable {
+        
+        private final ImportProgress progress;
+        private final Writer checkpointWriter;
+        private int nextReport = PROGRESS_EVERY;
+        
+        Run(ImportProgress progress) throws IOException {
+            this.progress = progress;
+            this.checkpointWriter = checkpoint != null
+                ? Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+                : null;
+        }
+        
+        /**
+         * Apply the operations of one subtree in order, stopping below anything that failed
+         */
+        void applySubtree(List<ImportRecord> records) {
+            records.sort(APPLY_ORDER);
+            Set<String> failedDNs = new HashSet<>();
+            
+            int start = 0;
+            while (start < records.size()) {
+                ImportRecord first = records.get(start);
+                if (first.getType() == ImportRecord.Type.ORG || first.getType() == ImportRecord.Type.GROUP) {
+                    applyEntry(first, failedDNs);
+                    start++;
+                    continue;
+                }
+                
+                // Admins and members of the same organization or group are applied together
+                int end = start + 1;
+                while (end < records.size() && records.get(end).getType() == first.getType()
+                        && records.get(end).getNormalizedDN().equals(first.getNormalizedDN())) {
+                    end++;
+                }
+                List<ImportRecord> batch = records.subList(start, end);
+                if (hasFailedAncestor(first.getTarget(), failedDNs)) {
+                    failAll(batch, "Organization or group was not created");
+                } else if (first.getType() == ImportRecord.Type.MEMBER) {
+                    applyMembers(batch);
+                } else {
+                    applyAdmins(batch);
+                }
+                start = end;
+            }
+        }
+        
+        private void applyEntry(ImportRecord record, Set<String> failedDNs) {
+            Dn dn = record.getTarget();
+            if (hasFailedAncestor(dn, failedDNs)) {
+                failedDNs.add(record.getNormalizedDN());
+                failAll(Collections.singletonList(record), "Parent was not created");
+                return;
+            }
+            
+            boolean exists;
+            boolean created;
+            if (record.getType() == ImportRecord.Type.ORG) {
+                exists = orgManager.organizationExists(record.getDN());
+                created = exists || createOrganization(dn);
+            } else {
+                exists = groupManager.groupExists(record.getDN());
+                created = exists || groupManager.createGroup(dn.value(), dn.parent().parent().toString());
+            }
+            
+            if (!created) {
+                failedDNs.add(record.getNormalizedDN());
+                failAll(Collections.singletonList(record),
+                    record.getType() == ImportRecord.Type.ORG ? "Failed to create organization" : "Failed to create group");
+                return;
+            }
+            
+            if (exists) {
+                progress.unchanged(1);
+            } else {
+                progress.applied(1);
+            }
+            completed(Collections.singletonList(record));
+        }
+        
+        private boolean createOrganization(Dn orgDN) {
+            Dn parent = orgDN.parent();
+            if (parent.equalsIgnoreCase(LdapConstants.INTERNAL_GROUPS)) {
+                return orgManager.createOrganization(orgDN.value(), LdapConstants.BRANCH_INTERNAL);
+            } else if (parent.equalsIgnoreCase(LdapConstants.EXTERNAL_GROUPS)) {
+                return orgManager.createOrganization(orgDN.value(), LdapConstants.BRANCH_EXTERNAL);
+            }
+            return orgManager.createSubOrganization(orgDN.value(), parent.toString());
+        }
+        
+        private void applyMembers(List<ImportRecord> batch) {
+            List<String> uids = new ArrayList<>(batch.size());
+            for (ImportRecord record : batch) {
+                uids.add(record.getUid());
+            }
+            
+            List<MemberResult> results = groupManager.addGroupMembers(batch.get(0).getDN(), uids);
+            
+            List<ImportRecord> done = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                MemberResult result = results.get(i);
+                switch (result.getStatus()) {
+                    case ADDED:
+                        progress.applied(1);
+                        done.add(batch.get(i));
+                        break;
+                    case UNCHANGED:
+                    case DUPLICATE:
+                        progress.unchanged(1);
+                        done.add(batch.get(i));
+                        break;
+                    default:
+                        progress.failed(batch.get(i), result.getMessage());
+                        break;
+                }
+            }
+            completed(done);
+        }
+        
+        private void applyAdmins(List<ImportRecord> batch) {
+            ImportRecord first = batch.get(0);
+            boolean orgAdmins = first.getType() == ImportRecord.Type.ORG_ADMIN;
+            String adminGroupDN = "cn=" + (orgAdmins ? LdapConstants.DOMAIN_ADMIN_CN : LdapConstants.GROUP_ADMIN_CN)
+                + "," + first.getDN();
+            
+            // Current admins, read once, so admins already present are not re-added
+            Set<String> currentAdmins = new HashSet<>();
+            for (String member : groupManager.getGroupMembers(adminGroupDN)) {
+                currentAdmins.add(member.toLowerCase());
+            }
+            
+            List<ImportRecord> done = new ArrayList<>(batch.size());
+            for (ImportRecord record : batch) {
+                String memberDN = "uid=" + record.getUid() + "," + adminGroupDN;
+                if (currentAdmins.contains(memberDN.toLowerCase())) {
+                    progress.unchanged(1);
+                    done.add(record);
+                    continue;
+                }
+                
+                boolean added = orgAdmins
+                    ? orgManager.addOrgAdmin(record.getDN(), record.getUid())
+                    : groupManager.addGroupAdmin(record.getDN(), record.getUid());
+                if (added) {
+                    progress.applied(1);
+                    done.add(record);
+                } else {
+                    progress.failed(record, "Failed to add admin");
+                }
+            }
+            completed(done);
+        }
+        
+        private boolean hasFailedAncestor(Dn dn, Set<String> failedDNs) {
+            if (failedDNs.isEmpty()) {
+                return false;
+            }
+            for (Dn current = dn; current != null; current = current.parent()) {
+                if (failedDNs.contains(current.normalized())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private void failAll(List<ImportRecord> records, String message) {
+            for (ImportRecord record : records) {
+                progress.failed(record, message);
+            }
+            report();
+        }
+        
+        /**
+         * Append completed operations to the checkpoint and report progress when due
+         */
+        private void completed(List<ImportRecord> records) {
+            if (checkpointWriter != null && !records.isEmpty()) {
+                synchronized (checkpointWriter) {
+                    try {
+                        for (ImportRecord record : records) {
+                            checkpointWriter.write(record.key());
+                            checkpointWriter.write('\n');
+                        }
+                        checkpointWriter.flush();
+                    } catch (IOException e) {
+                        // The import itself went through; a rerun would only redo these operations
+                        e.printStackTrace();
+                    }
+                }
+            }
+            report();
+        }
+        
+        private void report() {
+            if (progressListener == null) {
+                return;
+            }
+            synchronized (this) {
+                if (progress.getCompleted() < nextReport) {
+                    return;
+                }
+                nextReport = (progress.getCompleted() / PROGRESS_EVERY + 1) * PROGRESS_EVERY;
+            }
+            progressListener.accept(progress);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (checkpointWriter != null) {
+                checkpointWriter.close();
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,28 @@
+package com.sreemat.ldap.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request DTO for adding or removing many group members in one call
+ */
+public class BulkMembersRequest {
+    private List<String> uids;
+    
+    public BulkMembersRequest() {
+        this.uids = new ArrayList<>();
+    }
+    
+    public BulkMembersRequest(List<String> uids) {
+        this.uids = uids;
+    }
+    
+    // Getters and Setters
+    public List<String> getUids() {
+        return uids;
+    }
+    
+    public void setUids(List<String> uids) {
+        this.uids = uids;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,111 @@
+package com.sreemat.ldap.cache;
+
+import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.sync.DirectoryChangeBus;
+import com.sreemat.ldap.sync.DirectoryChangeEvent;
+import com.sreemat.ldap.utils.Dn;
+
+import java.util.function.Consumer;
+
+/**
+ * Keeps PermissionCache, OrgHierarchy and OrgNameIndex in line with directory change events
+ */
+public class CacheInvalidator implements Consumer<DirectoryChangeEvent> {
+    
+    private static volatile boolean installed;
+    
+    private CacheInvalidator() {
+    }
+    
+    /**
+     * Subscribe the caches to directory change events (call once at application startup)
+     */
+    public static synchronized void install() {
+        if (!installed) {
+            DirectoryChangeBus.subscribe(new CacheInvalidator());
+            installed = true;
+        }
+    }
+    
+    @Override
+    public void accept(DirectoryChangeEvent event) {
+        String dn = event.getDn();
+        
+        switch (event.getType()) {
+            case RESYNC:
+                PermissionCache.invalidateAll();
+                OrgHierarchy.invalidateAll();
+                OrgNameIndex.clear();
+                break;
+            
+            case ORG_ADDED:
+                OrgNameIndex.put(dn);
+                OrgHierarchy.invalidate(dn);
+                break;
+            
+            case ORG_REMOVED:
+                // Sub-orgs went with it, and the index has no TTL to age them out
+                OrgNameIndex.clear();
+                OrgHierarchy.invalidate(dn);
+                PermissionCache.invalidate(PermissionCache.Role.ORG_ADMIN, dn);
+                break;
+            
+            case ORG_RENAMED:
+                OrgHierarchy.invalidate(event.getPreviousDN());
+                OrgHierarchy.invalidate(dn);
+                // Every DN in the moved subtree changed
+                OrgNameIndex.clear();
+                PermissionCache.invalidateAll();
+                break;
+            
+            case GROUP_REMOVED:
+                PermissionCache.invalidate(PermissionCache.Role.GROUP_ADMIN, dn);
+                break;
+            
+            case GROUP_RENAMED:
+                PermissionCache.invalidate(PermissionCache.Role.GROUP_ADMIN, event.getPreviousDN());
+                PermissionCache.invalidate(PermissionCache.Role.GROUP_ADMIN, dn);
+                break;
+            
+            case ADMIN_CHANGED:
+                adminChanged(dn, event.getUid());
+                if (event.getPreviousDN() != null) {
+                    adminChanged(event.getPreviousDN(), null);
+                }
+                break;
+            
+            default:
+                // ORG_CHANGED, GROUP_ADDED and plain membership changes don't affect these caches
+                break;
+        }
+    }
+    
+    private static void adminChanged(String adminGroupDN, String uid) {
+        if (adminGroupDN.equalsIgnoreCase(LdapConstants.SUPER_ADMIN_GROUP)) {
+            invalidate(uid, PermissionCache.Role.SUPER_ADMIN, LdapConstants.SUPER_ADMIN_GROUP);
+            return;
+        }
+        
+        Dn dn = Dn.parse(adminGroupDN);
+        Dn parent = dn != null ? dn.parent() : null;
+        if (parent == null) {
+            return;
+        }
+        String parentDN = parent.toString();
+        
+        if (dn.rdnIs(0, LdapConstants.ATTR_CN, LdapConstants.DOMAIN_ADMIN_CN)) {
+            invalidate(uid, PermissionCache.Role.ORG_ADMIN, parentDN);
+            OrgHierarchy.invalidate(parentDN);
+        } else {
+            invalidate(uid, PermissionCache.Role.GROUP_ADMIN, parentDN);
+        }
+    }
+    
+    private static void invalidate(String uid, PermissionCache.Role role, String dn) {
+        if (uid != null) {
+            PermissionCache.invalidate(uid, role, dn);
+        } else {
+            PermissionCache.invalidate(role, dn);
+        }
+    }
+}
\ No newline at end of file
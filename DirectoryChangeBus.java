@@ -0,0 +1,48 @@
+package com.sreemat.ldap.sync;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * In-process publish/subscribe for directory change events.
+ * Caches and indexes subscribe; the change listener and local writes publish.
+ */
+public class DirectoryChangeBus {
+    
+    private static final List<Consumer<DirectoryChangeEvent>> subscribers = new CopyOnWriteArrayList<>();
+    
+    private DirectoryChangeBus() {
+    }
+    
+    /**
+     * Register a subscriber
+     */
+    public static void subscribe(Consumer<DirectoryChangeEvent> subscriber) {
+        subscribers.add(subscriber);
+    }
+    
+    /**
+     * Remove a subscriber
+     */
+    public static void unsubscribe(Consumer<DirectoryChangeEvent> subscriber) {
+        subscribers.remove(subscriber);
+    }
+    
+    /**
+     * Deliver an event to every subscriber on the calling thread; one failing subscriber
+     * does not stop the others
+     */
+    public static void publish(DirectoryChangeEvent event) {
+        if (event == null) {
+            return;
+        }
+        for (Consumer<DirectoryChangeEvent> subscriber : subscribers) {
+            try {
+                subscriber.accept(event);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,147 @@
+package com.sreemat.ldap.sync;
+
+import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.utils.Dn;
+
+/**
+ * Typed change to the directory under o=sreemat
+ */
+public class DirectoryChangeEvent {
+    
+    /**
+     * Kind of change
+     */
+    public enum Type {
+        ORG_ADDED,
+        ORG_REMOVED,
+        ORG_RENAMED,
+        ORG_CHANGED,
+        GROUP_ADDED,
+        GROUP_REMOVED,
+        GROUP_RENAMED,
+        MEMBER_ADDED,
+        MEMBER_REMOVED,
+        // Members of a group changed, but which ones is unknown (external modify)
+        MEMBERS_CHANGED,
+        // A DomainAdministrator, GroupAdministrator or SuperAdministrators group changed
+        ADMIN_CHANGED,
+        // Changes may have been missed (listener (re)connected); drop everything derived from the directory
+        RESYNC
+    }
+    
+    /**
+     * LDAP operation that caused the change
+     */
+    public enum Operation {
+        ADD,
+        DELETE,
+        MODIFY,
+        RENAME
+    }
+    
+    private final Type type;
+    private final String dn;
+    private final String previousDN;
+    private final String uid;
+    
+    public DirectoryChangeEvent(Type type, String dn, String previousDN, String uid) {
+        this.type = type;
+        this.dn = dn;
+        this.previousDN = previousDN;
+        this.uid = uid;
+    }
+    
+    /**
+     * Classify an LDAP operation on an entry, or return null for entries nobody tracks
+     * (e.g. the "ou=groups" containers)
+     */
+    public static DirectoryChangeEvent of(Operation operation, String dn, String previousDN) {
+        Dn parsed = Dn.parse(dn);
+        if (parsed == null) {
+            return null;
+        }
+        
+        if (parsed.isType(LdapConstants.ATTR_CN)) {
+            if (isAdminGroup(dn) || (previousDN != null && isAdminGroup(previousDN))) {
+                return new DirectoryChangeEvent(Type.ADMIN_CHANGED, dn, previousDN, null);
+            }
+            switch (operation) {
+                case ADD:
+                    return new DirectoryChangeEvent(Type.GROUP_ADDED, dn, null, null);
+                case DELETE:
+                    return new DirectoryChangeEvent(Type.GROUP_REMOVED, dn, null, null);
+                case RENAME:
+                    return new DirectoryChangeEvent(Type.GROUP_RENAMED, dn, previousDN, null);
+                default:
+                    return new DirectoryChangeEvent(Type.MEMBERS_CHANGED, dn, null, null);
+            }
+        }
+        
+        if (parsed.isType(LdapConstants.ATTR_OU) && !parsed.isGroupsContainer()) {
+            switch (operation) {
+                case ADD:
+                    return new DirectoryChangeEvent(Type.ORG_ADDED, dn, null, null);
+                case DELETE:
+                    return new DirectoryChangeEvent(Type.ORG_REMOVED, dn, null, null);
+                case RENAME:
+                    return new DirectoryChangeEvent(Type.ORG_RENAMED, dn, previousDN, null);
+                default:
+                    return new DirectoryChangeEvent(Type.ORG_CHANGED, dn, null, null);
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Event for a member value added to / removed from a group by this service
+     */
+    public static DirectoryChangeEvent memberChange(String groupDN, String memberDN, boolean added) {
+        Dn member = Dn.parse(memberDN);
+        String uid = member != null && member.isType(LdapConstants.ATTR_UID) ? member.value() : null;
+        
+        if (isAdminGroup(groupDN)) {
+            return new DirectoryChangeEvent(Type.ADMIN_CHANGED, groupDN, null, uid);
+        }
+        return new DirectoryChangeEvent(added ? Type.MEMBER_ADDED : Type.MEMBER_REMOVED, groupDN, null, uid);
+    }
+    
+    /**
+     * Check if DN is an admin group (DomainAdministrator, GroupAdministrator or SuperAdministrators)
+     */
+    public static boolean isAdminGroup(String dn) {
+        Dn parsed = Dn.parse(dn);
+        return parsed != null && parsed.size() > 1
+            && (parsed.rdnIs(0, LdapConstants.ATTR_CN, LdapConstants.DOMAIN_ADMIN_CN)
+                || parsed.rdnIs(0, LdapConstants.ATTR_CN, LdapConstants.GROUP_ADMIN_CN)
+                || parsed.equalsIgnoreCase(LdapConstants.SUPER_ADMIN_GROUP));
+    }
+    
+    public Type getType() {
+        return type;
+    }
+    
+    public String getDn() {
+        return dn;
+    }
+    
+    /**
+     * DN before a rename, otherwise null
+     */
+    public String getPreviousDN() {
+        return previousDN;
+    }
+    
+    /**
+     * Member uid for changes made by this service, otherwise null
+     */
+    public String getUid() {
+        return uid;
+    }
+    
+    @Override
+    public String toString() {
+        return type + " " + dn + (previousDN != null ? " (was " + previousDN + ")" : "")
+            + (uid != null ? " uid=" + uid : "");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,334 @@
+package com.sreemat.ldap.sync;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPControl;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPMessage;
+import com.novell.ldap.LDAPResponse;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchQueue;
+import com.novell.ldap.LDAPSearchResult;
+import com.novell.ldap.controls.LDAPEntryChangeControl;
+import com.novell.ldap.controls.LDAPPersistSearchControl;
+import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.dao.LdapDAO;
+import com.sreemat.ldap.dao.LdapSearchIterator;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background listener that turns directory changes under o=sreemat into DirectoryChangeEvents.
+ *
+ * Uses a persistent search (draft-ietf-ldapext-psearch) on its own connection, outside the pool.
+ * A heartbeat read on that connection detects a connection that died silently; it is then dropped
+ * and re-established. If the server does not support persistent search, falls back to polling
+ * modifyTimestamp. Polling sees adds and modifies but not deletes or renames, so it does not count
+ * as live: caches keep their short TTLs and deletes age out by TTL.
+ *
+ * Whenever the listener (re)connects a RESYNC event is published, since changes made while it was
+ * down were missed.
+ */
+public class DirectoryChangeListener implements Runnable {
+    
+    /**
+     * How changes are being observed
+     */
+    public enum Mode {
+        STOPPED,
+        CONNECTING,
+        PERSISTENT_SEARCH,
+        POLLING
+    }
+    
+    private static final String ENTRY_CHANGE_CONTROL_OID = "2.16.840.1.113730.3.4.7";
+    
+    // Orgs and groups (including admin groups) are all that caches are derived from
+    private static final String WATCH_FILTER = "(|" + LdapConstants.SEARCH_OU_FILTER + LdapConstants.SEARCH_GROUP_FILTER + ")";
+    
+    private static final String ATTR_CREATE_TIMESTAMP = "createTimestamp";
+    private static final String ATTR_MODIFY_TIMESTAMP = "modifyTimestamp";
+    
+    private static final long POLL_INTERVAL_MS = Long.getLong("ldap.changes.pollIntervalMs", 15000);
+    private static final long RECONNECT_DELAY_MS = 5000;
+    
+    // Persistent search connection check: interval, and how long the server may take to answer
+    private static final long HEARTBEAT_INTERVAL_MS = Long.getLong("ldap.changes.heartbeatMs", 30000);
+    private static final int HEARTBEAT_TIMEOUT_MS = 10000;
+    
+    // Overlap between polls, to cover clock skew between us and the server (duplicates are harmless)
+    private static final long POLL_OVERLAP_MS = 5000;
+    
+    private static final LdapDAO ldapDAO = new LdapDAO(false);
+    
+    private static volatile DirectoryChangeListener instance;
+    private static Thread thread;
+    private static ScheduledExecutorService heartbeat;
+    
+    private volatile boolean running = true;
+    private volatile Mode mode = Mode.CONNECTING;
+    private volatile LDAPConnection connection;
+    private boolean persistentSearchUnsupported;
+    
+    static {
+        try {
+            LDAPControl.register(ENTRY_CHANGE_CONTROL_OID, LDAPEntryChangeControl.class);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+    
+    private DirectoryChangeListener() {
+    }
+    
+    /**
+     * Start the listener thread (call at application startup, after subscribers are registered)
+     */
+    public static synchronized void start() {
+        if (instance != null) {
+            return;
+        }
+        instance = new DirectoryChangeListener();
+        thread = new Thread(instance, "ldap-change-listener");
+        thread.setDaemon(true);
+        thread.start();
+        
+        DirectoryChangeListener listener = instance;
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread heartbeatThread = new Thread(runnable, "ldap-change-heartbeat");
+            heartbeatThread.setDaemon(true);
+            return heartbeatThread;
+        });
+        heartbeat.scheduleWithFixedDelay(listener::checkConnection, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS,
+            TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stop the listener thread
+     */
+    public static synchronized void stop() {
+        if (instance == null) {
+            return;
+        }
+        instance.running = false;
+        instance.mode = Mode.STOPPED;
+        instance.disconnect();
+        thread.interrupt();
+        heartbeat.shutdownNow();
+        instance = null;
+        thread = null;
+        heartbeat = null;
+    }
+    
+    /**
+     * Check if every change (deletes included) is currently being delivered, so caches may keep
+     * entries longer. Only a persistent search that passes its heartbeat qualifies.
+     */
+    public static boolean isLive() {
+        DirectoryChangeListener listener = instance;
+        return listener != null && listener.mode == Mode.PERSISTENT_SEARCH;
+    }
+    
+    public static Mode getMode() {
+        DirectoryChangeListener listener = instance;
+        return listener != null ? listener.mode : Mode.STOPPED;
+    }
+    
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (persistentSearchUnsupported) {
+                    poll();
+                } else {
+                    persistentSearch();
+                }
+            } catch (LDAPException e) {
+                if (e.getResultCode() == LDAPException.UNAVAILABLE_CRITICAL_EXTENSION
+                        || e.getResultCode() == LDAPException.UNWILLING_TO_PERFORM) {
+                    // Server does not do persistent search; poll from now on
+                    persistentSearchUnsupported = true;
+                    continue;
+                }
+                if (running) {
+                    e.printStackTrace();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                disconnect();
+            }
+            
+            if (running) {
+                // Caches may hold entries under the long live TTL; changes from now on go unseen
+                boolean wasLive = mode == Mode.PERSISTENT_SEARCH;
+                mode = Mode.CONNECTING;
+                if (wasLive) {
+                    DirectoryChangeBus.publish(resync());
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Run a persistent search until it ends or the connection fails
+     */
+    private void persistentSearch() throws LDAPException {
+        connection = LdapDAO.getPool().openDedicated();
+        
+        LDAPSearchConstraints constraints = connection.getSearchConstraints();
+        constraints.setBatchSize(1);
+        constraints.setServerTimeLimit(0);
+        constraints.setTimeLimit(0);
+        // changesOnly: no initial result set; returnControls: get the entry change control
+        constraints.setControls(new LDAPPersistSearchControl(LDAPPersistSearchControl.ANY, true, true, true));
+        
+        LDAPSearchQueue queue = connection.search(LdapConstants.BASE_DN, LDAPConnection.SCOPE_SUB,
+            WATCH_FILTER, LdapConstants.dnOnly(), false, (LDAPSearchQueue) null, constraints);
+        
+        mode = Mode.PERSISTENT_SEARCH;
+        DirectoryChangeBus.publish(resync());
+        
+        while (running) {
+            LDAPMessage message = queue.getResponse();
+            if (message == null) {
+                return;
+            }
+            
+            if (message instanceof LDAPSearchResult) {
+                LDAPEntry entry = ((LDAPSearchResult) message).getEntry();
+                DirectoryChangeBus.publish(toEvent(entry.getDN(), message.getControls()));
+            } else if (message instanceof LDAPResponse) {
+                // The server ended the search
+                LDAPResponse response = (LDAPResponse) message;
+                if (response.getResultCode() != LDAPException.SUCCESS) {
+                    throw new LDAPException(response.getErrorMessage(), response.getResultCode(),
+                        response.getErrorMessage(), response.getMatchedDN());
+                }
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Heartbeat: read the base entry on the persistent search connection. If the server does not
+     * answer, stop counting as live, resync the caches (they may hold entries under the live TTL)
+     * and drop the connection, which ends the search and makes the listener reconnect.
+     */
+    private void checkConnection() {
+        LDAPConnection conn = connection;
+        if (mode != Mode.PERSISTENT_SEARCH || conn == null) {
+            return;
+        }
+        
+        try {
+            LDAPSearchConstraints constraints = new LDAPSearchConstraints();
+            constraints.setTimeLimit(HEARTBEAT_TIMEOUT_MS);
+            conn.read(LdapConstants.BASE_DN, LdapConstants.dnOnly(), constraints);
+        } catch (LDAPException e) {
+            if (running && connection == conn) {
+                // No answer in time: reconnect
+                e.printStackTrace();
+                mode = Mode.CONNECTING;
+                disconnect();
+                DirectoryChangeBus.publish(resync());
+            }
+        }
+    }
+    
+    /**
+     * Poll modifyTimestamp until polling fails
+     */
+    private void poll() throws LDAPException, InterruptedException {
+        long since = System.currentTimeMillis();
+        mode = Mode.POLLING;
+        DirectoryChangeBus.publish(resync());
+        
+        while (running) {
+            Thread.sleep(POLL_INTERVAL_MS);
+            
+            long pollStart = System.currentTimeMillis();
+            String sinceTime = generalizedTime(since - POLL_OVERLAP_MS);
+            String filter = "(&" + WATCH_FILTER + "(" + ATTR_MODIFY_TIMESTAMP + ">=" + sinceTime + "))";
+            
+            try (LdapSearchIterator entries = ldapDAO.searchPaged(LdapConstants.BASE_DN, LDAPConnection.SCOPE_SUB,
+                    filter, new String[]{ATTR_CREATE_TIMESTAMP})) {
+                while (entries.hasNext()) {
+                    LDAPEntry entry = entries.next();
+                    LDAPAttribute created = entry.getAttribute(ATTR_CREATE_TIMESTAMP);
+                    boolean isNew = created != null && created.getStringValue().compareTo(sinceTime) >= 0;
+                    DirectoryChangeBus.publish(DirectoryChangeEvent.of(
+                        isNew ? DirectoryChangeEvent.Operation.ADD : DirectoryChangeEvent.Operation.MODIFY,
+                        entry.getDN(), null));
+                }
+                
+                if (entries.getFailure() != null) {
+                    throw entries.getFailure();
+                }
+            }
+            
+            since = pollStart;
+        }
+    }
+    
+    private static DirectoryChangeEvent toEvent(String dn, LDAPControl[] controls) {
+        if (controls != null) {
+            for (LDAPControl control : controls) {
+                if (control instanceof LDAPEntryChangeControl) {
+                    LDAPEntryChangeControl change = (LDAPEntryChangeControl) control;
+                    return DirectoryChangeEvent.of(operationOf(change.getChangeType()), dn, change.getPreviousDN());
+                }
+            }
+        }
+        // No entry change control: treat as a modify
+        return DirectoryChangeEvent.of(DirectoryChangeEvent.Operation.MODIFY, dn, null);
+    }
+    
+    private static DirectoryChangeEvent.Operation operationOf(int changeType) {
+        switch (changeType) {
+            case LDAPPersistSearchControl.ADD:
+                return DirectoryChangeEvent.Operation.ADD;
+            case LDAPPersistSearchControl.DELETE:
+                return DirectoryChangeEvent.Operation.DELETE;
+            case LDAPPersistSearchControl.MODDN:
+                return DirectoryChangeEvent.Operation.RENAME;
+            default:
+                return DirectoryChangeEvent.Operation.MODIFY;
+        }
+    }
+    
+    private static DirectoryChangeEvent resync() {
+        return new DirectoryChangeEvent(DirectoryChangeEvent.Type.RESYNC, LdapConstants.BASE_DN, null, null);
+    }
+    
+    private static String generalizedTime(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+    
+    private void disconnect() {
+        LDAPConnection conn = connection;
+        connection = null;
+        if (conn != null) {
+            try {
+                conn.disconnect();
+            } catch (LDAPException e) {
+                // Connection already gone
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,574 @@
+package com.sreemat.ldap.replica;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPModification;
+import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.dao.LdapDAO;
+import com.sreemat.ldap.dao.LdapSearchIterator;
+import com.sreemat.ldap.sync.DirectoryChangeBus;
+import com.sreemat.ldap.sync.DirectoryChangeEvent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Optional in-memory copy of the INTERNAL_GROUPS and EXTERNAL_GROUPS subtrees (orgs, groups,
+ * admin groups and their members), enabled with -Dldap.replica.enabled=true.
+ *
+ * LdapDAO answers reads under those branches from here when the filter can be evaluated locally
+ * (see ReplicaFilter) and goes to the server otherwise. Writes still go to LDAP and are applied
+ * here once the server accepted them; changes made by others arrive as directory change events
+ * and are applied by re-reading the changed entry.
+ *
+ * The replica only answers while it is known to be current. If a change cannot be applied (the
+ * re-read failed for any reason other than the entry being gone) or changes may have been missed
+ * (RESYNC), it is marked stale: reads go to the server and a full reload is scheduled on a
+ * background thread, never on the change listener's thread.
+ *
+ * Install before CacheInvalidator so caches rebuilt on an event already see the update.
+ */
+public class DirectoryReplica {
+    
+    private static final boolean ENABLED = Boolean.getBoolean("ldap.replica.enabled");
+    
+    private static final String[] BRANCHES = {LdapConstants.INTERNAL_GROUPS, LdapConstants.EXTERNAL_GROUPS};
+    private static final String ALL_ENTRIES_FILTER = "(objectClass=*)";
+    
+    // Delay before retrying a failed reload, or reloading after a change could not be applied
+    private static final long RELOAD_RETRY_DELAY_MS = 5000;
+    
+    // Reads straight from the server (a replica-backed DAO would read from us)
+    private static final LdapDAO ldapDAO = new LdapDAO(false);
+    
+    private static final ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ldap-replica-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicBoolean reloadScheduled = new AtomicBoolean();
+    
+    // null until the first load completed
+    private static volatile State state;
+    // Set when the copy may be behind the server; reads then go to the server until a reload
+    private static volatile boolean stale;
+    // While a load runs: DNs (lower case) changed meanwhile -> whether their subtree changed;
+    // they are re-read onto the new copy once it is swapped in
+    private static volatile Map<String, Boolean> changedDuringLoad;
+    private static boolean installed;
+    
+    private DirectoryReplica() {
+    }
+    
+    /**
+     * Subscribe to directory change events and start loading the replica in the background
+     * (call at application startup, before DirectoryChangeListener.start()). Reads go to the
+     * server until the load completes; the listener's RESYNC when it connects reloads once more,
+     * so nothing changed between this load and the start of the change feed is missed.
+     */
+    public static synchronized void install() {
+        if (!ENABLED || installed) {
+            return;
+        }
+        DirectoryChangeBus.subscribe(DirectoryReplica::onChange);
+        installed = true;
+        scheduleReload(0);
+    }
+    
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+    
+    /**
+     * Check if reads can be served from the replica
+     */
+    public static boolean isReady() {
+        return readable() != null;
+    }
+    
+    /**
+     * (Re)load both branches from the server. The previous copy keeps serving (and receiving
+     * changes) until the new one is complete; changes that arrive during the load are then
+     * re-read onto the new copy before it serves.
+     */
+    public static synchronized boolean load() {
+        Map<String, Boolean> changed = new ConcurrentHashMap<>();
+        changedDuringLoad = changed;
+        try {
+            State loaded = new State();
+            for (String branchDN : BRANCHES) {
+                try (LdapSearchIterator entries = ldapDAO.searchPaged(branchDN, LDAPConnection.SCOPE_SUB,
+                        ALL_ENTRIES_FILTER, null)) {
+                    while (entries.hasNext()) {
+                        loaded.put(entries.next());
+                    }
+                    if (entries.getFailure() != null) {
+                        entries.getFailure().printStackTrace();
+                        return false;
+                    }
+                }
+            }
+            
+            // From here on changes are applied to the new copy directly
+            stale = true;
+            state = loaded;
+            changedDuringLoad = null;
+            for (Map.Entry<String, Boolean> change : changed.entrySet()) {
+                boolean applied = change.getValue()
+                    ? resyncSubtree(loaded, change.getKey())
+                    : resyncEntry(loaded, change.getKey());
+                if (!applied) {
+                    return false;
+                }
+            }
+            stale = false;
+            return true;
+        } finally {
+            changedDuringLoad = null;
+        }
+    }
+    
+    /**
+     * Search the replica, or return null if it cannot answer (not loaded, stale, base outside
+     * the replicated branches, or a filter it cannot evaluate)
+     */
+    public static List<LDAPEntry> search(String baseDN, int scope, String filter, String[] attrs) {
+        State current = readable();
+        if (current == null || !covers(baseDN)) {
+            return null;
+        }
+        ReplicaFilter parsed = ReplicaFilter.parse(filter);
+        if (parsed == null) {
+            return null;
+        }
+        
+        List<LDAPEntry> results = new ArrayList<>();
+        for (Entry entry : current.scope(normalize(baseDN), scope)) {
+            if (parsed.matches(entry.attributes)) {
+                results.add(entry.toLDAPEntry(attrs));
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Check if a group has a member value, or null if the replica cannot answer
+     */
+    public static Boolean hasMember(String groupDN, String memberDN) {
+        State current = readable();
+        if (current == null || !covers(groupDN)) {
+            return null;
+        }
+        Entry group = current.entries.get(normalize(groupDN));
+        return group != null && group.hasValue(LdapConstants.ATTR_MEMBER, memberDN);
+    }
+    
+    /**
+     * Check if an entry exists, or null if the replica cannot answer
+     */
+    public static Boolean exists(String dn) {
+        State current = readable();
+        if (current == null || !covers(dn)) {
+            return null;
+        }
+        return current.entries.containsKey(normalize(dn));
+    }
+    
+    /**
+     * Same contract as LdapDAO.findAdministeredDNs, or null if the replica cannot answer
+     */
+    public static List<String> findAdministeredDNs(String uid, String baseDN, String adminCN) {
+        State current = readable();
+        if (current == null || !covers(baseDN)) {
+            return null;
+        }
+        
+        List<String> administeredDNs = new ArrayList<>();
+        for (Entry entry : current.scope(normalize(baseDN), LDAPConnection.SCOPE_SUB)) {
+            if (entry.hasValue(LdapConstants.ATTR_CN, adminCN)
+                    && entry.hasValue(LdapConstants.ATTR_OBJECT_CLASS, LdapConstants.GROUP_OF_NAMES)
+                    && entry.hasValue(LdapConstants.ATTR_MEMBER, "uid=" + uid + "," + entry.dn)) {
+                int firstComma = entry.dn.indexOf(",");
+                if (firstComma != -1) {
+                    administeredDNs.add(entry.dn.substring(firstComma + 1));
+                }
+            }
+        }
+        return administeredDNs;
+    }
+    
+    /**
+     * Write-through: an entry was added on the server
+     */
+    public static void added(LDAPEntry entry) {
+        State current = state;
+        if (current != null && covers(entry.getDN())) {
+            recordChange(entry.getDN(), false);
+            current.put(entry);
+        }
+    }
+    
+    /**
+     * Write-through: an entry was modified on the server
+     */
+    public static void modified(String dn, LDAPModification[] mods) {
+        State current = state;
+        if (current == null || !covers(dn)) {
+            return;
+        }
+        recordChange(dn, false);
+        Entry entry = current.entries.get(normalize(dn));
+        if (entry == null) {
+            if (!resyncEntry(current, dn)) {
+                markStale();
+            }
+            return;
+        }
+        for (LDAPModification mod : mods) {
+            entry.apply(mod);
+        }
+    }
+    
+    /**
+     * Write-through: an entry was deleted on the server
+     */
+    public static void removed(String dn) {
+        State current = state;
+        if (current != null) {
+            recordChange(dn, true);
+            current.removeSubtree(normalize(dn));
+        }
+    }
+    
+    private static void onChange(DirectoryChangeEvent event) {
+        if (event.getType() == DirectoryChangeEvent.Type.RESYNC) {
+            // Changes may have been missed; the reload runs off the listener thread
+            stale = true;
+            scheduleReload(0);
+            return;
+        }
+        
+        State current = state;
+        if (current == null || !covers(event.getDn())) {
+            return;
+        }
+        
+        boolean applied;
+        switch (event.getType()) {
+            case MEMBER_ADDED:
+            case MEMBER_REMOVED:
+                // Published by our own writes, already applied write-through
+                return;
+            case ADMIN_CHANGED:
+                if (event.getUid() != null) {
+                    return;
+                }
+                recordChange(event.getDn(), false);
+                applied = resyncEntry(current, event.getDn());
+                break;
+            case ORG_REMOVED:
+            case GROUP_REMOVED:
+                recordChange(event.getDn(), true);
+                current.removeSubtree(normalize(event.getDn()));
+                return;
+            case ORG_RENAMED:
+            case GROUP_RENAMED:
+                recordChange(event.getPreviousDN(), true);
+                recordChange(event.getDn(), true);
+                current.removeSubtree(normalize(event.getPreviousDN()));
+                applied = resyncSubtree(current, event.getDn());
+                break;
+            default:
+                recordChange(event.getDn(), false);
+                applied = resyncEntry(current, event.getDn());
+        }
+        
+        if (!applied) {
+            markStale();
+        }
+    }
+    
+    /**
+     * Re-read one entry from the server. Returns false if it could not be read; an entry that
+     * no longer exists is removed (with anything below it) and counts as applied.
+     */
+    private static boolean resyncEntry(State current, String dn) {
+        LDAPConnection conn = null;
+        try {
+            conn = ldapDAO.getConnection();
+            current.put(conn.read(dn));
+            return true;
+        } catch (LDAPException e) {
+            ldapDAO.invalidateIfBroken(conn, e);
+            if (e.getResultCode() == LDAPException.NO_SUCH_OBJECT) {
+                current.removeSubtree(normalize(dn));
+                return true;
+            }
+            e.printStackTrace();
+            return false;
+        } finally {
+            ldapDAO.closeConnection(conn);
+        }
+    }
+    
+    /**
+     * Re-read an entry and everything below it from the server, replacing what the copy had there.
+     * Returns false (leaving the copy untouched) if the subtree could not be read completely.
+     */
+    private static boolean resyncSubtree(State current, String dn) {
+        List<LDAPEntry> subtree = new ArrayList<>();
+        try (LdapSearchIterator entries = ldapDAO.searchPaged(dn, LDAPConnection.SCOPE_SUB, ALL_ENTRIES_FILTER, null)) {
+            while (entries.hasNext()) {
+                subtree.add(entries.next());
+            }
+            LDAPException failure = entries.getFailure();
+            if (failure != null && failure.getResultCode() != LDAPException.NO_SUCH_OBJECT) {
+                failure.printStackTrace();
+                return false;
+            }
+        }
+        
+        current.removeSubtree(normalize(dn));
+        for (LDAPEntry entry : subtree) {
+            current.put(entry);
+        }
+        return true;
+    }
+    
+    /**
+     * The copy if it may answer reads, else null
+     */
+    private static State readable() {
+        State current = state;
+        return current != null && !stale ? current : null;
+    }
+    
+    private static void recordChange(String dn, boolean subtree) {
+        Map<String, Boolean> changed = changedDuringLoad;
+        if (changed != null && dn != null) {
+            changed.merge(normalize(dn), subtree, Boolean::logicalOr);
+        }
+    }
+    
+    /**
+     * Stop answering reads until a reload brought the copy back in line with the server
+     */
+    private static void markStale() {
+        stale = true;
+        scheduleReload(RELOAD_RETRY_DELAY_MS);
+    }
+    
+    private static void scheduleReload(long delayMs) {
+        if (!reloadScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        reloader.schedule(() -> {
+            reloadScheduled.set(false);
+            if (!load()) {
+                markStale();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+    
+    private static boolean covers(String dn) {
+        if (dn == null) {
+            return false;
+        }
+        String normalized = normalize(dn);
+        for (String branchDN : BRANCHES) {
+            String branchKey = normalize(branchDN);
+            if (normalized.equals(branchKey) || normalized.endsWith("," + branchKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static String parentOf(String normalizedDN) {
+        int firstComma = normalizedDN.indexOf(",");
+        return firstComma != -1 ? normalizedDN.substring(firstComma + 1) : "";
+    }
+    
+    private static String normalize(String dn) {
+        return dn.toLowerCase();
+    }
+    
+    /**
+     * One complete copy of the replicated branches
+     */
+    private static final class State {
+        // DN (lower case) -> entry
+        private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        // parent DN (lower case) -> child DNs (lower case); kept even when the parent entry is unknown
+        private final Map<String, Set<String>> children = new ConcurrentHashMap<>();
+        
+        void put(LDAPEntry ldapEntry) {
+            String key = normalize(ldapEntry.getDN());
+            entries.put(key, new Entry(ldapEntry));
+            children.computeIfAbsent(parentOf(key), parent -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        
+        void remove(String key) {
+            entries.remove(key);
+            Set<String> siblings = children.get(parentOf(key));
+            if (siblings != null) {
+                siblings.remove(key);
+            }
+        }
+        
+        void removeSubtree(String key) {
+            Set<String> below = children.remove(key);
+            if (below != null) {
+                for (String child : below) {
+                    removeSubtree(child);
+                }
+            }
+            remove(key);
+        }
+        
+        /**
+         * Entries in a search scope, parents before children
+         */
+        List<Entry> scope(String baseKey, int scope) {
+            List<Entry> inScope = new ArrayList<>();
+            if (scope == LDAPConnection.SCOPE_BASE) {
+                addIfPresent(baseKey, inScope);
+                return inScope;
+            }
+            if (scope == LDAPConnection.SCOPE_ONE) {
+                for (String child : children.getOrDefault(baseKey, Collections.emptySet())) {
+                    addIfPresent(child, inScope);
+                }
+                return inScope;
+            }
+            
+            Deque<String> pending = new ArrayDeque<>();
+            pending.add(baseKey);
+            while (!pending.isEmpty()) {
+                String key = pending.poll();
+                addIfPresent(key, inScope);
+                pending.addAll(children.getOrDefault(key, Collections.emptySet()));
+            }
+            return inScope;
+        }
+        
+        private void addIfPresent(String key, List<Entry> out) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                out.add(entry);
+            }
+        }
+    }
+    
+    /**
+     * Replicated entry: attribute name (lower case) -> value (lower case) -> value
+     */
+    private static final class Entry {
+        private final String dn;
+        private final Map<String, Map<String, String>> attributes = new ConcurrentHashMap<>();
+        
+        Entry(LDAPEntry ldapEntry) {
+            this.dn = ldapEntry.getDN();
+            Iterator<?> ldapAttributes = ldapEntry.getAttributeSet().iterator();
+            while (ldapAttributes.hasNext()) {
+                LDAPAttribute attribute = (LDAPAttribute) ldapAttributes.next();
+                replace(attribute);
+            }
+        }
+        
+        boolean hasValue(String attribute, String value) {
+            Map<String, String> values = attributes.get(attribute.toLowerCase());
+            return values != null && values.containsKey(value.toLowerCase());
+        }
+        
+        void apply(LDAPModification mod) {
+            LDAPAttribute attribute = mod.getAttribute();
+            String name = attribute.getName().toLowerCase();
+            switch (mod.getOp()) {
+                case LDAPModification.ADD:
+                    Map<String, String> values = attributes.computeIfAbsent(name, key -> new ConcurrentHashMap<>());
+                    for (String value : attribute.getStringValueArray()) {
+                        values.put(value.toLowerCase(), value);
+                    }
+                    break;
+                case LDAPModification.DELETE:
+                    Map<String, String> existing = attributes.get(name);
+                    if (existing == null) {
+                        break;
+                    }
+                    if (attribute.size() == 0) {
+                        attributes.remove(name);
+                    } else {
+                        for (String value : attribute.getStringValueArray()) {
+                            existing.remove(value.toLowerCase());
+                        }
+                    }
+                    break;
+                case LDAPModification.REPLACE:
+                    replace(attribute);
+                    break;
+                default:
+                    break;
+            }
+        }
+        
+        private void replace(LDAPAttribute attribute) {
+            Map<String, String> values = new ConcurrentHashMap<>();
+            Enumeration<?> stringValues = attribute.getStringValues();
+            while (stringValues.hasMoreElements()) {
+                String value = (String) stringValues.nextElement();
+                values.put(value.toLowerCase(), value);
+            }
+            if (values.isEmpty()) {
+                attributes.remove(attribute.getName().toLowerCase());
+            } else {
+                attributes.put(attribute.getName().toLowerCase(), values);
+            }
+        }
+        
+        /**
+         * Build an LDAPEntry with the requested attributes (null or "*" for all, dnOnly() for none)
+         */
+        LDAPEntry toLDAPEntry(String[] attrs) {
+            LDAPAttributeSet attributeSet = new LDAPAttributeSet();
+            boolean all = attrs == null;
+            Set<String> requested = new HashSet<>();
+            if (attrs != null) {
+                for (String attr : attrs) {
+                    if (attr.equals("*")) {
+                        all = true;
+                    } else if (!attr.equals(LdapConstants.NO_ATTRS)) {
+                        requested.add(attr.toLowerCase());
+                    }
+                }
+            }
+            
+            for (Map.Entry<String, Map<String, String>> attribute : attributes.entrySet()) {
+                if (all || requested.contains(attribute.getKey())) {
+                    LDAPAttribute ldapAttribute = new LDAPAttribute(attribute.getKey());
+                    for (String value : attribute.getValue().values()) {
+                        ldapAttribute.addValue(value);
+                    }
+                    attributeSet.add(ldapAttribute);
+                }
+            }
+            return new LDAPEntry(dn, attributeSet);
+        }
+    }
+}
\ No newline at end of file
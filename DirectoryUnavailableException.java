@@ -0,0 +1,19 @@
+package com.sreemat.ldap.dao;
+
+import com.novell.ldap.LDAPException;
+
+/**
+ * Thrown when a lookup could not reach the directory, so an empty or partial answer is never
+ * mistaken for a real one (e.g. "not an admin"); the controllers answer 503
+ */
+public class DirectoryUnavailableException extends RuntimeException {
+    
+    public DirectoryUnavailableException(String message, LDAPException cause) {
+        super(message + ": " + cause.getMessage(), cause);
+    }
+    
+    @Override
+    public synchronized LDAPException getCause() {
+        return (LDAPException) super.getCause();
+    }
+}
\ No newline at end of file
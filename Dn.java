@@ -0,0 +1,298 @@
+package com.sreemat.ldap.utils;
+
+import com.sreemat.ldap.constants.LdapConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parsed distinguished name: the original string plus the offsets of its RDNs.
+ * Parsing is escape-aware (RFC 4514 "\," and "\2C", and quoted values) and done once; comparisons
+ * are case-insensitive and run over the original characters, and parent() shares the parse,
+ * so the common checks do not allocate substrings.
+ *
+ * Only single-valued RDNs ("type=value") are recognized, which is all this directory uses.
+ */
+public final class Dn {
+    
+    private final String text;
+    // Per RDN: start of the attribute type, position of '=', end of the value (exclusive)
+    private final int[] starts;
+    private final int[] equalsAt;
+    private final int[] ends;
+    // Index of the first RDN of this view (parent() moves it along)
+    private final int first;
+    
+    private Dn(String text, int[] starts, int[] equalsAt, int[] ends, int first) {
+        this.text = text;
+        this.starts = starts;
+        this.equalsAt = equalsAt;
+        this.ends = ends;
+        this.first = first;
+    }
+    
+    /**
+     * Parse a DN, or return null if it is null, empty or malformed
+     */
+    public static Dn parse(String dn) {
+        if (dn == null || dn.isEmpty()) {
+            return null;
+        }
+        
+        // Upper bound on the RDN count (commas inside quoted values are counted too)
+        int maxRdns = 1;
+        for (int i = 0; i < dn.length(); i++) {
+            char c = dn.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == ',') {
+                maxRdns++;
+            }
+        }
+        
+        int[] starts = new int[maxRdns];
+        int[] equalsAt = new int[maxRdns];
+        int[] ends = new int[maxRdns];
+        int rdn = 0;
+        boolean quoted = false;
+        starts[0] = skipSpaces(dn, 0);
+        equalsAt[0] = -1;
+        
+        for (int i = 0; i < dn.length(); i++) {
+            char c = dn.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && c == '=' && equalsAt[rdn] == -1) {
+                equalsAt[rdn] = i;
+            } else if (!quoted && c == ',') {
+                if (equalsAt[rdn] == -1) {
+                    return null;
+                }
+                ends[rdn] = i;
+                rdn++;
+                starts[rdn] = skipSpaces(dn, i + 1);
+                equalsAt[rdn] = -1;
+            }
+        }
+        if (quoted || equalsAt[rdn] == -1) {
+            return null;
+        }
+        ends[rdn] = dn.length();
+        
+        int count = rdn + 1;
+        if (count < maxRdns) {
+            starts = Arrays.copyOf(starts, count);
+            equalsAt = Arrays.copyOf(equalsAt, count);
+            ends = Arrays.copyOf(ends, count);
+        }
+        return new Dn(dn, starts, equalsAt, ends, 0);
+    }
+    
+    /**
+     * Number of RDNs
+     */
+    public int size() {
+        return starts.length - first;
+    }
+    
+    /**
+     * DN without its first RDN (shares this parse), or null for a single-RDN DN
+     */
+    public Dn parent() {
+        return size() > 1 ? new Dn(text, starts, equalsAt, ends, first + 1) : null;
+    }
+    
+    /**
+     * Check if RDN i (0 = leftmost) has the given attribute type
+     */
+    public boolean rdnTypeIs(int i, String type) {
+        int start = starts[first + i];
+        int length = equalsAt[first + i] - start;
+        return length == type.length() && text.regionMatches(true, start, type, 0, length);
+    }
+    
+    /**
+     * Check if RDN i is type=value (case-insensitive, value compared unescaped)
+     */
+    public boolean rdnIs(int i, String type, String value) {
+        if (!rdnTypeIs(i, type)) {
+            return false;
+        }
+        int start = equalsAt[first + i] + 1;
+        int end = ends[first + i];
+        if (end - start == value.length() && text.regionMatches(true, start, value, 0, value.length())) {
+            return true;
+        }
+        // Escaped or quoted form differs in length from the plain value; compare it unescaped
+        return isEscaped(start, end) && unescape(start, end).equalsIgnoreCase(value);
+    }
+    
+    /**
+     * Check if the first RDN has the given attribute type
+     */
+    public boolean isType(String type) {
+        return size() > 0 && rdnTypeIs(0, type);
+    }
+    
+    /**
+     * Unescaped value of RDN i
+     */
+    public String rdnValue(int i) {
+        int start = equalsAt[first + i] + 1;
+        int end = ends[first + i];
+        return isEscaped(start, end) ? unescape(start, end) : text.substring(start, end);
+    }
+    
+    /**
+     * Raw (still escaped) value of RDN i, as a view over the original string
+     */
+    public CharSequence rdnValueView(int i) {
+        return CharBuffer.wrap(text, equalsAt[first + i] + 1, ends[first + i]);
+    }
+    
+    /**
+     * Value of the first RDN
+     */
+    public String value() {
+        return size() > 0 ? rdnValue(0) : null;
+    }
+    
+    /**
+     * Check if this DN equals another, ignoring case
+     */
+    public boolean equalsIgnoreCase(String dn) {
+        int start = starts[first];
+        int length = text.length() - start;
+        return dn != null && dn.length() == length && text.regionMatches(true, start, dn, 0, length);
+    }
+    
+    /**
+     * Check if this DN is the given DN or lies below it (case-insensitive)
+     */
+    public boolean isWithin(String ancestorDN) {
+        int start = starts[first];
+        int length = text.length() - start;
+        int ancestorLength = ancestorDN.length();
+        if (ancestorLength > length) {
+            return false;
+        }
+        int offset = text.length() - ancestorLength;
+        if (!text.regionMatches(true, offset, ancestorDN, 0, ancestorLength)) {
+            return false;
+        }
+        // Must end on an RDN boundary
+        return offset == start || text.charAt(offset - 1) == ',';
+    }
+    
+    /**
+     * Check if this DN is strictly below the given DN
+     */
+    public boolean isBelow(String ancestorDN) {
+        return !equalsIgnoreCase(ancestorDN) && isWithin(ancestorDN);
+    }
+    
+    /**
+     * Check if this is an "ou=groups" container, or lies below a container nested directly in another one
+     * (the entries the organization listings skip)
+     */
+    public boolean isGroupsContainer() {
+        if (size() > 0 && rdnIs(0, LdapConstants.ATTR_OU, LdapConstants.GROUPS_OU)) {
+            return true;
+        }
+        for (int i = 1; i < size(); i++) {
+            if (rdnIs(i - 1, LdapConstants.ATTR_OU, LdapConstants.GROUPS_OU)
+                    && rdnIs(i, LdapConstants.ATTR_OU, LdapConstants.GROUPS_OU)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Parse and check a DN in one go (false for null or malformed DNs)
+     */
+    public static boolean isGroupsContainer(String dn) {
+        Dn parsed = parse(dn);
+        return parsed != null && parsed.isGroupsContainer();
+    }
+    
+    /**
+     * Parent DN as a string, or null if the DN is malformed or has no parent
+     */
+    public static String parentOf(String dn) {
+        Dn parsed = parse(dn);
+        Dn parent = parsed != null ? parsed.parent() : null;
+        return parent != null ? parent.toString() : null;
+    }
+    
+    /**
+     * Lower-case form, for use as a map key
+     */
+    public String normalized() {
+        return toString().toLowerCase();
+    }
+    
+    @Override
+    public String toString() {
+        return first == 0 ? text : text.substring(starts[first]);
+    }
+    
+    private boolean isEscaped(int start, int end) {
+        if (start < end && text.charAt(start) == '"') {
+            return true;
+        }
+        int backslash = text.indexOf('\\', start);
+        return backslash != -1 && backslash < end;
+    }
+    
+    private static int skipSpaces(String dn, int from) {
+        int i = from;
+        while (i < dn.length() && dn.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+    
+    private String unescape(int start, int end) {
+        StringBuilder value = new StringBuilder(end - start);
+        ByteArrayOutputStream bytes = null;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < end) {
+                char next = text.charAt(i + 1);
+                if (i + 2 < end && isHex(next) && isHex(text.charAt(i + 2))) {
+                    // Hex pair: collect UTF-8 bytes until the run of pairs ends
+                    if (bytes == null) {
+                        bytes = new ByteArrayOutputStream();
+                    }
+                    bytes.write(Integer.parseInt(text.substring(i + 1, i + 3), 16));
+                    i += 2;
+                    continue;
+                }
+                flush(bytes, value);
+                value.append(next);
+                i++;
+            } else if (c != '"') {
+                flush(bytes, value);
+                value.append(c);
+            }
+        }
+        flush(bytes, value);
+        return value.toString();
+    }
+    
+    private static void flush(ByteArrayOutputStream bytes, StringBuilder value) {
+        if (bytes != null && bytes.size() > 0) {
+            value.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+            bytes.reset();
+        }
+    }
+    
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+}
\ No newline at end of file
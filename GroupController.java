@@ -1,16 +1,33 @@
 package com.sreemat.ldap.controller;
 
+import com.sreemat.ldap.dao.DirectoryUnavailableException;
+import com.sreemat.ldap.dao.IncompleteSearchException;
+import com.sreemat.ldap.dao.LdapExecutor;
 import com.sreemat.ldap.dto.ApiResponse;
+import com.sreemat.ldap.dto.BulkMembersRequest;
 import com.sreemat.ldap.dto.GroupResponse;
+import com.sreemat.ldap.dto.JsonStreamWriter;
+import com.sreemat.ldap.dto.MemberResult;
+import com.sreemat.ldap.dto.PageResponse;
 import com.sreemat.ldap.manager.GroupManager;
 import com.sreemat.ldap.manager.OrgManager;
+import com.sreemat.ldap.utils.PaginationUtils;
 import com.sreemat.ldap.utils.PermissionUtils;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * REST Controller for Group operations
@@ -20,6 +37,9 @@ import java.util.List;
 @Consumes(MediaType.APPLICATION_JSON)
 public class GroupController {
     
+    // Max member UIDs accepted by one bulk membership request
+    private static final int MAX_BULK_MEMBERS = 10000;
+    
     private final GroupManager groupManager;
     private final OrgManager orgManager;
     
@@ -33,9 +53,20 @@ public class GroupController {
      * Get groups for user in specified branch
      */
     @GET
-    public Response getGroups(
+    public CompletionStage<Response> getGroups(
             @PathParam("branch") String branch,
-            @HeaderParam("uid") String uid) {
+            @HeaderParam("uid") String uid,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("cursor") String cursor,
+            @QueryParam("stream") @DefaultValue("false") boolean streamOutput) {
+        return LdapExecutor.submit(() -> doGetGroups(branch, uid, limit, cursor, streamOutput))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of getGroups, run on the LDAP executor
+     */
+    private Response doGetGroups(String branch, String uid, Integer limit, String cursor, boolean streamOutput) {
         
         try {
             // Validate inputs
@@ -51,17 +82,23 @@ public class GroupController {
                     .build();
             }
             
+            // Paginated listing
+            if (limit != null || cursor != null) {
+                return getGroupsPage(uid, branch, limit, cursor);
+            }
+            
+            // Streamed listing
+            if (streamOutput) {
+                return streamGroups(uid, branch);
+            }
+            
             // Get groups
             List<String> groupDNs = groupManager.getGroupsForUser(uid, branch);
             List<GroupResponse> groups = new ArrayList<>();
             
             for (String groupDN : groupDNs) {
-                String groupName = PermissionUtils.extractGroupName(groupDN);
-                String orgDN = PermissionUtils.extractOrgDNFromGroup(groupDN);
-                String orgName = PermissionUtils.extractOrgName(orgDN);
-                
-                if (groupName != null && orgName != null) {
-                    GroupResponse groupResponse = new GroupResponse(groupDN, groupName, orgDN, orgName, branch);
+                GroupResponse groupResponse = toGroupResponse(groupDN, branch);
+                if (groupResponse != null) {
                     groups.add(groupResponse);
                 }
             }
@@ -69,6 +106,11 @@ public class GroupController {
             return Response.ok(ApiResponse.success("Groups retrieved successfully", groups))
                     .build();
             
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -82,11 +124,19 @@ public class GroupController {
      * Create new group
      */
     @POST
-    public Response createGroup(
+    public CompletionStage<Response> createGroup(
             @PathParam("branch") String branch,
             @HeaderParam("uid") String uid,
             @QueryParam("groupName") String groupName,
             @QueryParam("orgName") String orgName) {
+        return LdapExecutor.submit(() -> doCreateGroup(branch, uid, groupName, orgName))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of createGroup, run on the LDAP executor
+     */
+    private Response doCreateGroup(String branch, String uid, String groupName, String orgName) {
         
         try {
             // Validate inputs
@@ -142,6 +192,11 @@ public class GroupController {
                     .build();
             }
             
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -156,12 +211,20 @@ public class GroupController {
      */
     @POST
     @Path("/{groupName}/admins")
-    public Response addGroupAdmin(
+    public CompletionStage<Response> addGroupAdmin(
             @PathParam("branch") String branch,
             @PathParam("groupName") String groupName,
             @HeaderParam("uid") String requesterUid,
             @QueryParam("adminUid") String adminUid,
             @QueryParam("orgName") String orgName) {
+        return LdapExecutor.submit(() -> doAddGroupAdmin(branch, groupName, requesterUid, adminUid, orgName))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of addGroupAdmin, run on the LDAP executor
+     */
+    private Response doAddGroupAdmin(String branch, String groupName, String requesterUid, String adminUid, String orgName) {
         
         try {
             // Validate inputs
@@ -216,6 +279,11 @@ public class GroupController {
                     .build();
             }
             
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -230,12 +298,20 @@ public class GroupController {
      */
     @DELETE
     @Path("/{groupName}/admins")
-    public Response removeGroupAdmin(
+    public CompletionStage<Response> removeGroupAdmin(
             @PathParam("branch") String branch,
             @PathParam("groupName") String groupName,
             @HeaderParam("uid") String requesterUid,
             @QueryParam("adminUid") String adminUid,
             @QueryParam("orgName") String orgName) {
+        return LdapExecutor.submit(() -> doRemoveGroupAdmin(branch, groupName, requesterUid, adminUid, orgName))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of removeGroupAdmin, run on the LDAP executor
+     */
+    private Response doRemoveGroupAdmin(String branch, String groupName, String requesterUid, String adminUid, String orgName) {
         
         try {
             // Validate inputs
@@ -290,6 +366,11 @@ public class GroupController {
                     .build();
             }
             
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -304,12 +385,20 @@ public class GroupController {
      */
     @POST
     @Path("/{groupName}/members")
-    public Response addGroupMember(
+    public CompletionStage<Response> addGroupMember(
             @PathParam("branch") String branch,
             @PathParam("groupName") String groupName,
             @HeaderParam("uid") String requesterUid,
             @QueryParam("memberUid") String memberUid,
             @QueryParam("orgName") String orgName) {
+        return LdapExecutor.submit(() -> doAddGroupMember(branch, groupName, requesterUid, memberUid, orgName))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of addGroupMember, run on the LDAP executor
+     */
+    private Response doAddGroupMember(String branch, String groupName, String requesterUid, String memberUid, String orgName) {
         
         try {
             // Validate inputs
@@ -364,6 +453,11 @@ public class GroupController {
                     .build();
             }
             
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -378,12 +472,20 @@ public class GroupController {
      */
     @DELETE
     @Path("/{groupName}/members")
-    public Response removeGroupMember(
+    public CompletionStage<Response> removeGroupMember(
             @PathParam("branch") String branch,
             @PathParam("groupName") String groupName,
             @HeaderParam("uid") String requesterUid,
             @QueryParam("memberUid") String memberUid,
             @QueryParam("orgName") String orgName) {
+        return LdapExecutor.submit(() -> doRemoveGroupMember(branch, groupName, requesterUid, memberUid, orgName))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of removeGroupMember, run on the LDAP executor
+     */
+    private Response doRemoveGroupMember(String branch, String groupName, String requesterUid, String memberUid, String orgName) {
         
         try {
             // Validate inputs
@@ -438,6 +540,126 @@ public class GroupController {
                     .build();
             }
             
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity(ApiResponse.error("Internal server error: " + e.getMessage()))
+                    .build();
+        }
+    }
+    
+    /**
+     * POST /branches/{branch}/groups/{groupName}/members/bulk
+     * Add many group members; body: {"uids": [...]}
+     */
+    @POST
+    @Path("/{groupName}/members/bulk")
+    public CompletionStage<Response> addGroupMembers(
+            @PathParam("branch") String branch,
+            @PathParam("groupName") String groupName,
+            @HeaderParam("uid") String requesterUid,
+            @QueryParam("orgName") String orgName,
+            BulkMembersRequest request) {
+        return LdapExecutor.submit(() -> doChangeGroupMembers(branch, groupName, requesterUid, orgName, request, true))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * DELETE /branches/{branch}/groups/{groupName}/members/bulk
+     * Remove many group members; body: {"uids": [...]}
+     */
+    @DELETE
+    @Path("/{groupName}/members/bulk")
+    public CompletionStage<Response> removeGroupMembers(
+            @PathParam("branch") String branch,
+            @PathParam("groupName") String groupName,
+            @HeaderParam("uid") String requesterUid,
+            @QueryParam("orgName") String orgName,
+            BulkMembersRequest request) {
+        return LdapExecutor.submit(() -> doChangeGroupMembers(branch, groupName, requesterUid, orgName, request, false))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of the bulk member endpoints, run on the LDAP executor.
+     * The group is resolved and the permission checked once for the whole list.
+     */
+    private Response doChangeGroupMembers(String branch, String groupName, String requesterUid, String orgName,
+                                          BulkMembersRequest request, boolean add) {
+        
+        try {
+            // Validate inputs
+            if (requesterUid == null || requesterUid.trim().isEmpty()) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(ApiResponse.error("UID header is required"))
+                    .build();
+            }
+            
+            if (!PermissionUtils.isValidBranch(branch)) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(ApiResponse.error("Invalid branch. Must be 'internal' or 'external'"))
+                    .build();
+            }
+            
+            if (request == null || request.getUids() == null || request.getUids().isEmpty()) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(ApiResponse.error("At least one member UID is required"))
+                    .build();
+            }
+            
+            if (request.getUids().size() > MAX_BULK_MEMBERS) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(ApiResponse.error("At most " + MAX_BULK_MEMBERS + " member UIDs per request"))
+                    .build();
+            }
+            
+            if (orgName == null || orgName.trim().isEmpty()) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(ApiResponse.error("Organization name is required"))
+                    .build();
+            }
+            
+            // Find group
+            String groupDN = groupManager.findGroupDN(groupName, orgName, branch);
+            if (groupDN == null) {
+                return Response.status(Response.Status.NOT_FOUND)
+                    .entity(ApiResponse.error("Group not found"))
+                    .build();
+            }
+            
+            // Check permissions - only group admins can change members
+            if (!PermissionUtils.canManageGroupMembers(requesterUid, groupDN)) {
+                return Response.status(Response.Status.FORBIDDEN)
+                    .entity(ApiResponse.error(add
+                        ? "Only group admins can add group members"
+                        : "Only group admins can remove group members"))
+                    .build();
+            }
+            
+            List<MemberResult> results = add
+                ? groupManager.addGroupMembers(groupDN, request.getUids())
+                : groupManager.removeGroupMembers(groupDN, request.getUids());
+            
+            long failed = results.stream()
+                .filter(result -> result.getStatus() == MemberResult.Status.FAILED
+                    || result.getStatus() == MemberResult.Status.INVALID)
+                .count();
+            String message = (results.size() - failed) + " of " + results.size() + " member UIDs processed"
+                + (failed > 0 ? ", " + failed + " failed" : "");
+            
+            return Response.ok(ApiResponse.success(message, results))
+                    .build();
+            
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -445,4 +667,115 @@ public class GroupController {
                     .build();
         }
     }
+    
+    /**
+     * Get one page of groups. The page is taken from the visible groups in their sorted order
+     * (GroupManager.streamGroupsSorted), reading only as far as the end of the page.
+     */
+    private Response getGroupsPage(String uid, String branch, Integer limit, String cursor) {
+        if (!PaginationUtils.isValidLimit(limit)) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                .entity(ApiResponse.error("limit must be between 1 and " + PaginationUtils.MAX_LIMIT))
+                .build();
+        }
+        
+        long offset = PaginationUtils.decodeCursor(cursor);
+        if (offset < 0) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                .entity(ApiResponse.error("Invalid cursor"))
+                .build();
+        }
+        
+        // Read one entry past the page to know whether there is a next page
+        List<GroupResponse> groups;
+        try (Stream<String> groupDNs = groupManager.streamGroupsSorted(uid, branch)) {
+            groups = groupDNs
+                .map(groupDN -> toGroupResponse(groupDN, branch))
+                .filter(Objects::nonNull)
+                .skip(offset)
+                .limit(limit + 1L)
+                .collect(Collectors.toList());
+        }
+        
+        String nextCursor = null;
+        if (groups.size() > limit) {
+            groups = groups.subList(0, limit);
+            nextCursor = PaginationUtils.encodeCursor(offset + limit);
+        }
+        
+        return Response.ok(ApiResponse.success("Groups retrieved successfully",
+                new PageResponse<>(groups, limit, nextCursor)))
+                .build();
+    }
+    
+    /**
+     * Stream groups to the client as they are read from LDAP, in the usual
+     * {success, message, data} envelope. If the search fails midway the response is aborted
+     * without closing the envelope.
+     */
+    private Response streamGroups(String uid, String branch) {
+        StreamingOutput output = out -> {
+            // Holds a pooled connection on this container thread until the body is written
+            LdapExecutor.acquireStream();
+            try {
+                JsonStreamWriter json = new JsonStreamWriter(out);
+                json.beginList("Groups retrieved successfully");
+                
+                try (Stream<String> groupDNs = groupManager.streamGroupsForUser(uid, branch)) {
+                    Iterator<String> iterator = groupDNs.iterator();
+                    while (iterator.hasNext()) {
+                        GroupResponse groupResponse = toGroupResponse(iterator.next(), branch);
+                        if (groupResponse != null) {
+                            json.writeGroup(groupResponse);
+                        }
+                    }
+                } catch (IncompleteSearchException e) {
+                    e.printStackTrace();
+                    throw new IOException("Group listing aborted", e);
+                }
+                
+                json.endList();
+            } finally {
+                LdapExecutor.releaseStream();
+            }
+        };
+        
+        return Response.ok(output, MediaType.APPLICATION_JSON).build();
+    }
+    
+    /**
+     * Convert a group DN to a GroupResponse, or null if the DN is not a group of an organization
+     */
+    private GroupResponse toGroupResponse(String groupDN, String branch) {
+        String groupName = PermissionUtils.extractGroupName(groupDN);
+        String orgDN = PermissionUtils.extractOrgDNFromGroup(groupDN);
+        String orgName = PermissionUtils.extractOrgName(orgDN);
+        
+        if (groupName != null && orgName != null) {
+            return new GroupResponse(groupDN, groupName, orgDN, orgName, branch);
+        }
+        return null;
+    }
+    
+    /**
+     * Map a failed or rejected async handler to an error response
+     */
+    private Response ldapFailure(Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        if (cause instanceof RejectedExecutionException) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Server busy, please retry"))
+                    .build();
+        }
+        if (cause instanceof DirectoryUnavailableException) {
+            cause.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
+        }
+        cause.printStackTrace();
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                .entity(ApiResponse.error("Internal server error: " + cause.getMessage()))
+                .build();
+    }
 }
\ No newline at end of file
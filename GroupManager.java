@@ -2,18 +2,37 @@ package com.sreemat.ldap.manager;
 
 import com.novell.ldap.LDAPConnection;
 import com.novell.ldap.LDAPEntry;
+import com.sreemat.ldap.cache.PermissionCache;
 import com.sreemat.ldap.constants.LdapConstants;
 import com.sreemat.ldap.dao.LdapDAO;
+import com.sreemat.ldap.dao.LdapFanOut;
+import com.sreemat.ldap.dao.LdapSearchIterator;
+import com.sreemat.ldap.dao.RollbackIncompleteException;
+import com.sreemat.ldap.dto.MemberResult;
+import com.sreemat.ldap.utils.Dn;
 import com.sreemat.ldap.utils.PermissionUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Manager class for Group operations
  */
 public class GroupManager {
     
+    // Up to this many administered orgs, their groups are searched per org instead of scanning the branch
+    private static final int PER_ORG_SEARCH_LIMIT = 8;
+    
+    // Max member values sent in one multi-valued modify by the bulk membership methods
+    private static final int BULK_MODIFY_CHUNK_SIZE = 500;
+    
     private final LdapDAO ldapDAO;
     private final OrgManager orgManager;
     
@@ -23,66 +42,149 @@ public class GroupManager {
     }
     
     /**
-     * Get list of groups that user can view in a specific branch
+     * Get list of groups that user can view in a specific branch: the groups of the orgs the user
+     * administers, plus the groups the user administers directly.
+     * The number of searches is not constant. Each admin lookup lists every admin group DN of its kind and
+     * sends ceil(N/100) member-filter searches (see LdapDAO.findAdministeredDNs), and past
+     * PER_ORG_SEARCH_LIMIT administered orgs the groups come from a DN-only scan of the branch.
+     * Member values embed their group's DN, so there is no single filter (or memberOf) for
+     * "every group listing this uid". With -Dldap.membershipIndex.enabled the two admin lookups are
+     * answered from memory and only the org group searches reach the server.
      */
     public List<String> getGroupsForUser(String uid, String branch) {
-        List<String> visibleGroups = new ArrayList<>();
-        
         if (PermissionUtils.isSuperAdmin(uid)) {
             // Super admin can see all groups in the branch
             return getAllGroupsInBranch(branch);
         }
         
-        // Get organizations where user is admin
+        // Hash-based merge keeps the order and avoids O(n^2) contains checks
+        Set<String> visibleGroups = new LinkedHashSet<>();
+        
+        // Get organizations where user is admin, and all their groups
         List<String> adminOrgs = orgManager.getOrganizationsUserAdmins(uid, branch);
+        visibleGroups.addAll(getGroupsInOrganizations(adminOrgs, branch));
         
-        for (String orgDN : adminOrgs) {
-            // Get all groups in this organization
-            String groupsPath = "ou=groups," + orgDN;
-            List<LDAPEntry> groupEntries = ldapDAO.search(groupsPath, LDAPConnection.SCOPE_SUB, LdapConstants.SEARCH_GROUP_FILTER);
-            
-            for (LDAPEntry entry : groupEntries) {
-                String groupDN = entry.getDN();
-                // Skip admin groups
-                if (!isAdminGroup(groupDN)) {
-                    visibleGroups.add(groupDN);
-                }
+        // Also add groups where user is group admin (but not org admin)
+        visibleGroups.addAll(getGroupsWhereUserIsAdmin(uid, branch));
+        
+        return new ArrayList<>(visibleGroups);
+    }
+    
+    /**
+     * Get the (non-admin) groups of several organizations.
+     * A few orgs are searched individually in parallel; beyond that one DN-only scan
+     * of the branch is matched against the org set.
+     */
+    private List<String> getGroupsInOrganizations(List<String> orgDNs, String branch) {
+        List<String> groups = new ArrayList<>();
+        String branchDN = ldapDAO.getBranchDN(branch);
+        
+        if (orgDNs.isEmpty() || branchDN == null) {
+            return groups;
+        }
+        
+        if (orgDNs.size() <= PER_ORG_SEARCH_LIMIT) {
+            for (List<String> orgGroups : LdapFanOut.map(orgDNs, this::getGroupsInOrganization)) {
+                groups.addAll(orgGroups);
             }
+            return groups;
         }
         
-        // Also add groups where user is group admin (but not org admin)
-        List<String> groupAdminGroups = getGroupsWhereUserIsAdmin(uid, branch);
-        for (String groupDN : groupAdminGroups) {
-            if (!visibleGroups.contains(groupDN)) {
-                visibleGroups.add(groupDN);
+        Set<String> orgKeys = new HashSet<>();
+        for (String orgDN : orgDNs) {
+            orgKeys.add(orgDN.toLowerCase());
+        }
+        
+        try (LdapSearchIterator groupEntries = ldapDAO.searchPaged(branchDN, LDAPConnection.SCOPE_SUB,
+                LdapConstants.SEARCH_GROUP_FILTER, LdapConstants.dnOnly())) {
+            while (groupEntries.hasNext()) {
+                String groupDN = groupEntries.next().getDN();
+                String orgDN = PermissionUtils.extractOrgDNFromGroup(groupDN);
+                // Skip admin groups and groups of other orgs
+                if (orgDN != null && orgKeys.contains(orgDN.toLowerCase()) && !isAdminGroup(groupDN)) {
+                    groups.add(groupDN);
+                }
             }
         }
         
-        return visibleGroups;
+        return groups;
+    }
+    
+    /**
+     * Stream the groups that user can view (the same groups as getGroupsForUser).
+     * For a super admin the DNs come straight from a paged LDAP search of the branch, in the server's order.
+     * For everyone else the administered orgs are looked up first and their groups are then searched
+     * one org at a time as the stream is consumed, followed by the directly administered groups;
+     * orgs and the groups of each org are sorted by DN, so the order is stable while nothing changes.
+     * The stream must be closed.
+     */
+    public Stream<String> streamGroupsForUser(String uid, String branch) {
+        if (PermissionUtils.isSuperAdmin(uid)) {
+            return streamAllGroupsInBranch(branch);
+        }
+        
+        List<String> adminOrgs = new ArrayList<>(orgManager.getOrganizationsUserAdmins(uid, branch));
+        adminOrgs.sort(String.CASE_INSENSITIVE_ORDER);
+        Set<String> adminOrgKeys = new HashSet<>();
+        for (String orgDN : adminOrgs) {
+            adminOrgKeys.add(orgDN.toLowerCase());
+        }
+        
+        Stream<String> orgGroups = adminOrgs.stream()
+            .flatMap(orgDN -> sortedDNs(getGroupsInOrganization(orgDN)).stream());
+        
+        // Looked up only once the org groups are used up; groups of administered orgs were listed already
+        Stream<String> administeredGroups = Stream.of(branch)
+            .flatMap(b -> sortedDNs(getGroupsWhereUserIsAdmin(uid, b)).stream())
+            .filter(groupDN -> {
+                String orgDN = PermissionUtils.extractOrgDNFromGroup(groupDN);
+                return orgDN == null || !adminOrgKeys.contains(orgDN.toLowerCase());
+            });
+        
+        return Stream.concat(orgGroups, administeredGroups);
+    }
+    
+    /**
+     * Stream the groups that user can view in an order that does not change between calls while
+     * the groups do not, as offset paging needs. Same as streamGroupsForUser except for a super admin,
+     * whose branch is read in full and sorted by DN rather than streamed in the server's order:
+     * O(n log n) and n DNs in memory per call. The stream must be closed.
+     */
+    public Stream<String> streamGroupsSorted(String uid, String branch) {
+        if (PermissionUtils.isSuperAdmin(uid)) {
+            return sortedDNs(getAllGroupsInBranch(branch)).stream();
+        }
+        return streamGroupsForUser(uid, branch);
+    }
+    
+    private static List<String> sortedDNs(List<String> dns) {
+        dns.sort(String.CASE_INSENSITIVE_ORDER);
+        return dns;
     }
     
     /**
      * Get all groups in a branch (for super admin)
      */
     private List<String> getAllGroupsInBranch(String branch) {
-        List<String> allGroups = new ArrayList<>();
+        try (Stream<String> groupDNs = streamAllGroupsInBranch(branch)) {
+            return groupDNs.collect(Collectors.toList());
+        }
+    }
+    
+    /**
+     * Stream all groups in a branch page by page instead of materializing every entry
+     */
+    private Stream<String> streamAllGroupsInBranch(String branch) {
         String branchDN = ldapDAO.getBranchDN(branch);
         
         if (branchDN == null) {
-            return allGroups;
+            return Stream.empty();
         }
         
-        List<LDAPEntry> groupEntries = ldapDAO.search(branchDN, LDAPConnection.SCOPE_SUB, LdapConstants.SEARCH_GROUP_FILTER);
-        
-        for (LDAPEntry entry : groupEntries) {
-            String groupDN = entry.getDN();
+        return ldapDAO.stream(branchDN, LDAPConnection.SCOPE_SUB, LdapConstants.SEARCH_GROUP_FILTER, LdapConstants.dnOnly())
+            .map(LDAPEntry::getDN)
             // Skip admin groups
-            if (!isAdminGroup(groupDN)) {
-                allGroups.add(groupDN);
-            }
-        }
-        
-        return allGroups;
+            .filter(groupDN -> !isAdminGroup(groupDN));
     }
     
     /**
@@ -96,12 +198,11 @@ public class GroupManager {
             return adminGroups;
         }
         
-        List<LDAPEntry> groupEntries = ldapDAO.search(branchDN, LDAPConnection.SCOPE_SUB, LdapConstants.SEARCH_GROUP_FILTER);
-        
-        for (LDAPEntry entry : groupEntries) {
-            String groupDN = entry.getDN();
-            // Skip admin groups and check if user is admin
-            if (!isAdminGroup(groupDN) && PermissionUtils.isGroupAdmin(uid, groupDN)) {
+        // GroupAdministrator groups listing the user, matched server-side; their parents are the groups
+        List<String> administeredDNs = ldapDAO.findAdministeredDNs(uid, branchDN, LdapConstants.GROUP_ADMIN_CN);
+        for (String groupDN : administeredDNs) {
+            // Skip admin groups
+            if (!isAdminGroup(groupDN)) {
                 adminGroups.add(groupDN);
             }
         }
@@ -113,9 +214,10 @@ public class GroupManager {
      * Check if group is an admin group (DomainAdministrator or GroupAdministrator)
      */
     private boolean isAdminGroup(String groupDN) {
-        String groupName = PermissionUtils.extractGroupName(groupDN);
-        return LdapConstants.DOMAIN_ADMIN_CN.equals(groupName) || 
-               LdapConstants.GROUP_ADMIN_CN.equals(groupName);
+        Dn dn = Dn.parse(groupDN);
+        return dn != null && dn.size() > 1
+            && (dn.rdnIs(0, LdapConstants.ATTR_CN, LdapConstants.DOMAIN_ADMIN_CN)
+                || dn.rdnIs(0, LdapConstants.ATTR_CN, LdapConstants.GROUP_ADMIN_CN));
     }
     
     /**
@@ -126,18 +228,13 @@ public class GroupManager {
         String groupDN = "cn=" + groupName + "," + groupsPath;
         
         try {
-            // Create the group
-            boolean groupCreated = ldapDAO.createGroup(groupDN, groupName);
-            if (!groupCreated) {
-                return false;
-            }
-            
-            // Create group administrator group
+            // The group and its GroupAdministrator group on one connection; on failure both are rolled back
             String adminGroupDN = "cn=" + LdapConstants.GROUP_ADMIN_CN + "," + groupDN;
-            boolean adminGroupCreated = ldapDAO.createGroup(adminGroupDN, LdapConstants.GROUP_ADMIN_CN);
-            
-            return adminGroupCreated;
+            return ldapDAO.addEntryTree(LdapDAO.groupEntry(groupDN, groupName),
+                Collections.singletonList(LdapDAO.groupEntry(adminGroupDN, LdapConstants.GROUP_ADMIN_CN)));
             
+        } catch (RollbackIncompleteException e) {
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -151,7 +248,9 @@ public class GroupManager {
         String adminGroupDN = "cn=" + LdapConstants.GROUP_ADMIN_CN + "," + groupDN;
         String memberDN = "uid=" + adminUid + "," + adminGroupDN;
         
-        return ldapDAO.addMemberToGroup(adminGroupDN, memberDN);
+        boolean added = ldapDAO.addMemberToGroup(adminGroupDN, memberDN);
+        PermissionCache.invalidate(adminUid, PermissionCache.Role.GROUP_ADMIN, groupDN);
+        return added;
     }
     
     /**
@@ -161,7 +260,9 @@ public class GroupManager {
         String adminGroupDN = "cn=" + LdapConstants.GROUP_ADMIN_CN + "," + groupDN;
         String memberDN = "uid=" + adminUid + "," + adminGroupDN;
         
-        return ldapDAO.removeMemberFromGroup(adminGroupDN, memberDN);
+        boolean removed = ldapDAO.removeMemberFromGroup(adminGroupDN, memberDN);
+        PermissionCache.invalidate(adminUid, PermissionCache.Role.GROUP_ADMIN, groupDN);
+        return removed;
     }
     
     /**
@@ -180,6 +281,109 @@ public class GroupManager {
         return ldapDAO.removeMemberFromGroup(groupDN, memberDN);
     }
     
+    /**
+     * Add many members to a group, reporting an outcome per uid (in input order).
+     * Members are added with a few multi-valued modifies; a chunk the server rejects is split in
+     * half and each half retried, down to single uids, and a uid whose single modify also fails is
+     * checked against the group: already a member is UNCHANGED, anything else (including a failed
+     * check) is FAILED.
+     */
+    public List<MemberResult> addGroupMembers(String groupDN, List<String> memberUids) {
+        return changeGroupMembers(groupDN, memberUids, true);
+    }
+    
+    /**
+     * Remove many members from a group, reporting an outcome per uid (in input order).
+     * Same approach as addGroupMembers; a uid is only UNCHANGED once the server confirmed it is
+     * not a member, never because the membership could not be read.
+     */
+    public List<MemberResult> removeGroupMembers(String groupDN, List<String> memberUids) {
+        return changeGroupMembers(groupDN, memberUids, false);
+    }
+    
+    private List<MemberResult> changeGroupMembers(String groupDN, List<String> memberUids, boolean add) {
+        MemberResult[] results = new MemberResult[memberUids.size()];
+        
+        Set<String> seen = new HashSet<>();
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < memberUids.size(); i++) {
+            String memberUid = memberUids.get(i) != null ? memberUids.get(i).trim() : "";
+            if (memberUid.isEmpty()) {
+                results[i] = new MemberResult(memberUid, MemberResult.Status.INVALID, "Member UID is required");
+            } else if (!seen.add(memberUid.toLowerCase())) {
+                results[i] = new MemberResult(memberUid, MemberResult.Status.DUPLICATE, "Listed more than once");
+            } else {
+                results[i] = new MemberResult(memberUid, null, null);
+                pending.add(i);
+            }
+        }
+        
+        for (int start = 0; start < pending.size(); start += BULK_MODIFY_CHUNK_SIZE) {
+            List<Integer> chunk = pending.subList(start, Math.min(start + BULK_MODIFY_CHUNK_SIZE, pending.size()));
+            changeGroupMemberChunk(groupDN, results, chunk, add);
+        }
+        
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Apply the uids of results[chunk] with one modify. If the server rejects it (a single value already
+     * present or missing fails the whole modify), bisect: each half is retried the same way, so k bad
+     * uids in a chunk of n cost about 2k*log2(n) modifies instead of n single ones.
+     */
+    private void changeGroupMemberChunk(String groupDN, MemberResult[] results, List<Integer> chunk, boolean add) {
+        if (chunk.size() == 1) {
+            changeGroupMember(groupDN, results[chunk.get(0)], add);
+            return;
+        }
+        
+        List<String> memberDNs = new ArrayList<>(chunk.size());
+        for (int index : chunk) {
+            memberDNs.add(memberDN(results[index].getUid(), groupDN));
+        }
+        
+        boolean chunkApplied = add
+            ? ldapDAO.addMembersToGroup(groupDN, memberDNs)
+            : ldapDAO.removeMembersFromGroup(groupDN, memberDNs);
+        if (chunkApplied) {
+            for (int index : chunk) {
+                results[index].setStatus(add ? MemberResult.Status.ADDED : MemberResult.Status.REMOVED);
+            }
+            return;
+        }
+        
+        int middle = chunk.size() / 2;
+        changeGroupMemberChunk(groupDN, results, chunk.subList(0, middle), add);
+        changeGroupMemberChunk(groupDN, results, chunk.subList(middle, chunk.size()), add);
+    }
+    
+    /**
+     * Apply one uid left over from bisecting a rejected chunk, and classify it if the server rejects it too
+     */
+    private void changeGroupMember(String groupDN, MemberResult result, boolean add) {
+        String memberDN = memberDN(result.getUid(), groupDN);
+        boolean memberApplied = add
+            ? ldapDAO.addMemberToGroup(groupDN, memberDN)
+            : ldapDAO.removeMemberFromGroup(groupDN, memberDN);
+        if (memberApplied) {
+            result.setStatus(add ? MemberResult.Status.ADDED : MemberResult.Status.REMOVED);
+            return;
+        }
+        
+        Boolean member = ldapDAO.checkMember(groupDN, memberDN);
+        if (member != null && member == add) {
+            result.setStatus(MemberResult.Status.UNCHANGED);
+            result.setMessage(add ? "Already a member" : "Not a member");
+        } else {
+            result.setStatus(MemberResult.Status.FAILED);
+            result.setMessage(add ? "Failed to add group member" : "Failed to remove group member");
+        }
+    }
+    
+    private static String memberDN(String memberUid, String groupDN) {
+        return "uid=" + memberUid + "," + groupDN;
+    }
+    
     /**
      * Check if group exists
      */
@@ -211,10 +415,9 @@ public class GroupManager {
         List<String> groups = new ArrayList<>();
         String groupsPath = "ou=groups," + orgDN;
         
-        List<LDAPEntry> groupEntries = ldapDAO.search(groupsPath, LDAPConnection.SCOPE_SUB, LdapConstants.SEARCH_GROUP_FILTER);
+        List<String> groupDNs = ldapDAO.searchDNs(groupsPath, LDAPConnection.SCOPE_SUB, LdapConstants.SEARCH_GROUP_FILTER);
         
-        for (LDAPEntry entry : groupEntries) {
-            String groupDN = entry.getDN();
+        for (String groupDN : groupDNs) {
             // Skip admin groups
             if (!isAdminGroup(groupDN)) {
                 groups.add(groupDN);
@@ -230,7 +433,8 @@ public class GroupManager {
     public List<String> getGroupMembers(String groupDN) {
         List<String> members = new ArrayList<>();
         
-        LDAPEntry entry = ldapDAO.searchSingle(groupDN, LDAPConnection.SCOPE_BASE, "(objectClass=*)");
+        LDAPEntry entry = ldapDAO.searchSingle(groupDN, LDAPConnection.SCOPE_BASE, "(objectClass=*)",
+            new String[]{LdapConstants.ATTR_MEMBER});
         if (entry != null) {
             com.novell.ldap.LDAPAttribute memberAttr = entry.getAttribute(LdapConstants.ATTR_MEMBER);
             if (memberAttr != null) {
@@ -0,0 +1,102 @@
+package com.sreemat.ldap.bulk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Running counts of a bulk import, shared by the subtrees applied in parallel
+ */
+public class ImportProgress {
+    
+    // Failure messages kept for the report; counts keep going past it
+    private static final int MAX_FAILURES = 1000;
+    
+    private final int total;
+    private final AtomicInteger applied = new AtomicInteger();
+    // Already present in the directory
+    private final AtomicInteger unchanged = new AtomicInteger();
+    // Completed by an earlier run, per the checkpoint
+    private final AtomicInteger resumed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    // Input entries that were not turned into operations ("dn: reason")
+    private final List<String> skipped = new ArrayList<>();
+    
+    ImportProgress(int total) {
+        this.total = total;
+    }
+    
+    void applied(int count) {
+        applied.addAndGet(count);
+    }
+    
+    void unchanged(int count) {
+        unchanged.addAndGet(count);
+    }
+    
+    void skipped(List<String> entries) {
+        skipped.addAll(entries);
+    }
+    
+    void resumed(int count) {
+        resumed.addAndGet(count);
+    }
+    
+    void failed(ImportRecord record, String message) {
+        failed.incrementAndGet();
+        if (failures.size() < MAX_FAILURES) {
+            failures.add(record + ": " + message);
+        }
+    }
+    
+    public int getTotal() {
+        return total;
+    }
+    
+    public int getApplied() {
+        return applied.get();
+    }
+    
+    public int getUnchanged() {
+        return unchanged.get();
+    }
+    
+    public int getResumed() {
+        return resumed.get();
+    }
+    
+    public int getFailed() {
+        return failed.get();
+    }
+    
+    /**
+     * Operations finished so far, whatever their outcome
+     */
+    public int getCompleted() {
+        return applied.get() + unchanged.get() + resumed.get() + failed.get();
+    }
+    
+    /**
+     * Input entries that were skipped rather than imported ("dn: reason"); not counted in the total
+     */
+    public List<String> getSkipped() {
+        return Collections.unmodifiableList(skipped);
+    }
+    
+    /**
+     * The first failure messages ("TYPE dn [uid]: reason")
+     */
+    public List<String> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return getCompleted() + "/" + total + " (applied " + getApplied() + ", unchanged " + getUnchanged()
+            + ", resumed " + getResumed() + ", failed " + getFailed() + ", skipped " + skipped.size() + ")";
+    }
+}
\ No newline at end of file
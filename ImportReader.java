@@ -0,0 +1,286 @@
+package com.sreemat.ldap.bulk;
+
+import com.novell.ldap.LDAPAddRequest;
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPMessage;
+import com.novell.ldap.LDAPSearchResult;
+import com.novell.ldap.util.LDIFReader;
+import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.utils.Dn;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads bulk import operations from LDIF or CSV.
+ *
+ * LDIF: organizationalUnit entries become organizations ("ou=groups" containers are skipped, they
+ * are created with their organization), groupOfNames entries become groups, and the member values
+ * of groups, DomainAdministrator and GroupAdministrator groups become members and admins.
+ *
+ * CSV: one operation per line, "type,dn[,uid]" with type one of org, group, orgadmin, groupadmin
+ * or member; dn is the organization or group DN and must be quoted, since it contains commas.
+ * Blank lines, lines starting with '#' and a header line starting with "type" are ignored.
+ *
+ * Every DN is checked against the directory layout before anything is applied. LDIF entries that
+ * are not imported (SUPER_ADMIN_GROUP, found in LDIF exported before BranchExporter left it out,
+ * and entries that are neither organizations nor groups) are reported back, not applied.
+ */
+public class ImportReader {
+    
+    private ImportReader() {
+    }
+    
+    /**
+     * Read operations from LDIF content (or "changetype: add" records). Entries that are skipped
+     * are added to skipped as "dn: reason".
+     */
+    public static List<ImportRecord> readLdif(InputStream in, List<String> skipped) throws IOException {
+        List<ImportRecord> records = new ArrayList<>();
+        
+        try {
+            LDIFReader reader = new LDIFReader(withoutPlaceholders(in));
+            LDAPMessage message;
+            while ((message = reader.readMessage()) != null) {
+                LDAPEntry entry;
+                if (message instanceof LDAPSearchResult) {
+                    entry = ((LDAPSearchResult) message).getEntry();
+                } else if (message instanceof LDAPAddRequest) {
+                    entry = ((LDAPAddRequest) message).getEntry();
+                } else {
+                    throw new IOException("Only content and add records can be imported");
+                }
+                addEntry(records, entry, skipped);
+            }
+        } catch (LDAPException e) {
+            throw new IOException("Invalid LDIF: " + e.getMessage(), e);
+        }
+        
+        return records;
+    }
+    
+    /**
+     * The LDIF without empty "member:" lines (the groupOfNames placeholder, in exports made before
+     * BranchExporter dropped it), which LDIFReader rejects as a field without a value
+     */
+    private static InputStream withoutPlaceholders(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        StringBuilder ldif = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.trim().equalsIgnoreCase(LdapConstants.ATTR_MEMBER + ":")) {
+                ldif.append(line).append('\n');
+            }
+        }
+        return new ByteArrayInputStream(ldif.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Read operations from CSV
+     */
+    public static List<ImportRecord> readCsv(InputStream in) throws IOException {
+        List<ImportRecord> records = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")
+                    || (lineNumber == 1 && trimmed.regionMatches(true, 0, "type", 0, 4))) {
+                continue;
+            }
+            
+            List<String> fields = splitCsv(trimmed);
+            if (fields == null || fields.size() < 2) {
+                throw new IOException("Line " + lineNumber + ": expected type,dn[,uid]");
+            }
+            
+            ImportRecord.Type type = csvType(fields.get(0));
+            if (type == null) {
+                throw new IOException("Line " + lineNumber + ": unknown type '" + fields.get(0) + "'");
+            }
+            
+            String uid = fields.size() > 2 && !fields.get(2).isEmpty() ? fields.get(2) : null;
+            if ((type == ImportRecord.Type.ORG || type == ImportRecord.Type.GROUP) != (uid == null)) {
+                throw new IOException("Line " + lineNumber + ": uid is required for admins and members only");
+            }
+            
+            Dn dn = Dn.parse(fields.get(1));
+            String error = validate(type, dn);
+            if (error != null) {
+                throw new IOException("Line " + lineNumber + ": " + error);
+            }
+            records.add(new ImportRecord(type, dn, uid));
+        }
+        
+        return records;
+    }
+    
+    private static void addEntry(List<ImportRecord> records, LDAPEntry entry, List<String> skipped) throws IOException {
+        String entryDN = entry.getDN();
+        Dn dn = Dn.parse(entryDN);
+        if (dn == null) {
+            throw new IOException("Malformed DN: " + entryDN);
+        }
+        
+        if (dn.equalsIgnoreCase(LdapConstants.SUPER_ADMIN_GROUP)) {
+            skipped.add(entryDN + ": super administrators are not imported");
+            return;
+        }
+        
+        if (hasObjectClass(entry, LdapConstants.ORGANIZATIONAL_UNIT)) {
+            if (dn.isGroupsContainer()) {
+                return;
+            }
+            records.add(checked(ImportRecord.Type.ORG, dn, null));
+            
+        } else if (hasObjectClass(entry, LdapConstants.GROUP_OF_NAMES)) {
+            ImportRecord.Type memberType;
+            Dn target;
+            if (dn.rdnIs(0, LdapConstants.ATTR_CN, LdapConstants.DOMAIN_ADMIN_CN)) {
+                memberType = ImportRecord.Type.ORG_ADMIN;
+                target = dn.parent();
+            } else if (dn.rdnIs(0, LdapConstants.ATTR_CN, LdapConstants.GROUP_ADMIN_CN)) {
+                memberType = ImportRecord.Type.GROUP_ADMIN;
+                target = dn.parent();
+            } else {
+                memberType = ImportRecord.Type.MEMBER;
+                target = dn;
+                records.add(checked(ImportRecord.Type.GROUP, dn, null));
+            }
+            
+            LDAPAttribute memberAttr = entry.getAttribute(LdapConstants.ATTR_MEMBER);
+            if (memberAttr != null) {
+                for (String member : memberAttr.getStringValueArray()) {
+                    // groupOfNames placeholder
+                    if (member.isEmpty()) {
+                        continue;
+                    }
+                    Dn memberDN = Dn.parse(member);
+                    if (memberDN == null || !memberDN.isType(LdapConstants.ATTR_UID)) {
+                        throw new IOException("Member is not a uid DN: " + member + " in " + entryDN);
+                    }
+                    records.add(checked(memberType, target, memberDN.value()));
+                }
+            }
+            
+        } else {
+            skipped.add(entryDN + ": neither an organization nor a group");
+        }
+    }
+    
+    private static ImportRecord checked(ImportRecord.Type type, Dn target, String uid) throws IOException {
+        String error = validate(type, target);
+        if (error != null) {
+            throw new IOException(error);
+        }
+        return new ImportRecord(type, target, uid);
+    }
+    
+    /**
+     * Check that a DN fits the directory layout for the operation, returning the problem or null
+     */
+    private static String validate(ImportRecord.Type type, Dn dn) {
+        if (dn == null) {
+            return "Malformed DN";
+        }
+        
+        switch (type) {
+            case ORG:
+            case ORG_ADMIN:
+                if (!dn.isType(LdapConstants.ATTR_OU) || dn.isGroupsContainer() || !isInBranch(dn)) {
+                    return "Not an organization DN: " + dn;
+                }
+                return null;
+            default:
+                Dn orgDN = dn.size() > 2 ? dn.parent().parent() : null;
+                if (orgDN == null || !dn.isType(LdapConstants.ATTR_CN)
+                        || !dn.rdnIs(1, LdapConstants.ATTR_OU, LdapConstants.GROUPS_OU)
+                        || dn.rdnIs(0, LdapConstants.ATTR_CN, LdapConstants.DOMAIN_ADMIN_CN)
+                        || dn.rdnIs(0, LdapConstants.ATTR_CN, LdapConstants.GROUP_ADMIN_CN)
+                        || orgDN.isGroupsContainer() || !isInBranch(orgDN)) {
+                    return "Not a group DN: " + dn;
+                }
+                return null;
+        }
+    }
+    
+    private static boolean isInBranch(Dn dn) {
+        return dn.isBelow(LdapConstants.INTERNAL_GROUPS) || dn.isBelow(LdapConstants.EXTERNAL_GROUPS);
+    }
+    
+    static boolean hasObjectClass(LDAPEntry entry, String objectClass) {
+        LDAPAttribute objectClasses = entry.getAttribute(LdapConstants.ATTR_OBJECT_CLASS);
+        if (objectClasses != null) {
+            for (String value : objectClasses.getStringValueArray()) {
+                if (value.equalsIgnoreCase(objectClass)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private static ImportRecord.Type csvType(String type) {
+        switch (type.toLowerCase()) {
+            case "org":
+                return ImportRecord.Type.ORG;
+            case "group":
+                return ImportRecord.Type.GROUP;
+            case "orgadmin":
+                return ImportRecord.Type.ORG_ADMIN;
+            case "groupadmin":
+                return ImportRecord.Type.GROUP_ADMIN;
+            case "member":
+                return ImportRecord.Type.MEMBER;
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Split a CSV line (RFC 4180 quoting, "" inside quotes is a quote), or null on an unterminated quote
+     */
+    private static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,67 @@
+package com.sreemat.ldap.bulk;
+
+import com.sreemat.ldap.utils.Dn;
+
+/**
+ * One operation of a bulk import: create an organization or a group, or add an admin or a member
+ */
+public final class ImportRecord {
+    
+    /**
+     * Import operation, in the order operations are applied within a subtree
+     */
+    public enum Type {
+        ORG,
+        GROUP,
+        ORG_ADMIN,
+        GROUP_ADMIN,
+        MEMBER
+    }
+    
+    private final Type type;
+    // Organization DN (ORG, ORG_ADMIN) or group DN (GROUP, GROUP_ADMIN, MEMBER)
+    private final Dn target;
+    private final String normalizedDN;
+    private final String uid;
+    
+    ImportRecord(Type type, Dn target, String uid) {
+        this.type = type;
+        this.target = target;
+        this.normalizedDN = target.normalized();
+        this.uid = uid;
+    }
+    
+    public Type getType() {
+        return type;
+    }
+    
+    public Dn getTarget() {
+        return target;
+    }
+    
+    public String getDN() {
+        return target.toString();
+    }
+    
+    public String getNormalizedDN() {
+        return normalizedDN;
+    }
+    
+    public String getUid() {
+        return uid;
+    }
+    
+    /**
+     * Key of this operation in a checkpoint file (one line, case-insensitive)
+     */
+    public String key() {
+        return uid != null
+            ? type + "\t" + normalizedDN + "\t" + uid.toLowerCase()
+            : type + "\t" + normalizedDN;
+    }
+    
+    @Override
+    public String toString() {
+        return uid != null ? type + " " + getDN() + " " + uid : type + " " + getDN();
+    }
+}
\ No newline at end of file
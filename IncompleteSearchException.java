@@ -0,0 +1,14 @@
+package com.sreemat.ldap.dao;
+
+import com.novell.ldap.LDAPException;
+
+/**
+ * Thrown by a streamed search that ended early (connection lost, server error, size limit),
+ * so a truncated result is never mistaken for a complete one
+ */
+public class IncompleteSearchException extends DirectoryUnavailableException {
+    
+    public IncompleteSearchException(String baseDN, LDAPException cause) {
+        super("Search of " + baseDN + " ended early", cause);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,91 @@
+package com.sreemat.ldap.dto;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a list response as JSON one entry at a time, in the same
+ * {success, message, data: [...]} envelope as ApiResponse.
+ * Entries are serialized by Jackson, the same way the JSON provider serializes whole responses.
+ */
+public class JsonStreamWriter {
+    
+    // Push entries to the client every this many items
+    private static final int FLUSH_EVERY = 100;
+    
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    
+    // Flushing is left to FLUSH_EVERY, not done after every entry
+    private static final ObjectWriter ITEM_WRITER = MAPPER.writer()
+        .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    
+    private final JsonGenerator generator;
+    private int count;
+    
+    public JsonStreamWriter(OutputStream out) throws IOException {
+        this.generator = createGenerator(out);
+    }
+    
+    /**
+     * Open a UTF-8 generator on a stream owned by the caller: closing the generator leaves the stream open
+     */
+    public static JsonGenerator createGenerator(OutputStream out) throws IOException {
+        JsonGenerator generator = MAPPER.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        return generator;
+    }
+    
+    /**
+     * Open the envelope and the data array
+     */
+    public void beginList(String message) throws IOException {
+        generator.writeStartObject();
+        generator.writeBooleanField("success", true);
+        generator.writeStringField("message", message);
+        generator.writeArrayFieldStart("data");
+    }
+    
+    /**
+     * Write one organization entry
+     */
+    public void writeOrg(OrgResponse org) throws IOException {
+        writeItem(org);
+    }
+    
+    /**
+     * Write one group entry
+     */
+    public void writeGroup(GroupResponse group) throws IOException {
+        writeItem(group);
+    }
+    
+    /**
+     * Close the data array and the envelope, and flush
+     */
+    public void endList() throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.flush();
+    }
+    
+    /**
+     * Flush buffered output to the client
+     */
+    public void flush() throws IOException {
+        generator.flush();
+    }
+    
+    private void writeItem(Object item) throws IOException {
+        ITEM_WRITER.writeValue(generator, item);
+        count++;
+        if (count % FLUSH_EVERY == 0) {
+            generator.flush();
+        }
+    }
+}
\ No newline at end of file
@@ -1,9 +1,24 @@
 package com.sreemat.ldap.dao;
 
 import com.novell.ldap.*;
+import com.sreemat.ldap.cache.MembershipIndex;
 import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.replica.DirectoryReplica;
+import com.sreemat.ldap.sync.DirectoryChangeBus;
+import com.sreemat.ldap.sync.DirectoryChangeEvent;
+import com.sreemat.ldap.utils.Dn;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * LDAP Data Access Object for all LDAP operations
@@ -15,45 +30,104 @@ public class LdapDAO {
     private static final String ADMIN_DN = "cn=admin," + LdapConstants.BASE_DN;
     private static final String ADMIN_PASSWORD = "admin_password";
     
+    // Max number of member=... clauses OR-ed into a single search filter
+    private static final int MEMBER_FILTER_BATCH_SIZE = 100;
+    
+    // Page size used for Simple Paged Results searches
+    private static final int SEARCH_PAGE_SIZE = 500;
+    
+    // Connection pool settings
+    private static final int POOL_MAX_SIZE = 20;
+    private static final long POOL_BORROW_TIMEOUT_MS = 5000;
+    private static final long POOL_VALIDATE_AFTER_IDLE_MS = 30000;
+    private static final long POOL_MAX_LIFETIME_MS = 30 * 60 * 1000;
+    
+    // Shared by every LdapDAO instance so managers and PermissionUtils reuse the same warm connections
+    private static final LdapConnectionPool POOL = new LdapConnectionPool(
+        LDAP_HOST, LDAP_PORT, ADMIN_DN, ADMIN_PASSWORD,
+        POOL_MAX_SIZE, POOL_BORROW_TIMEOUT_MS, POOL_VALIDATE_AFTER_IDLE_MS, POOL_MAX_LIFETIME_MS);
+    
+    // Whether reads may be answered from memory (replica, membership index) instead of the server
+    private final boolean useReplica;
+    
+    public LdapDAO() {
+        this(true);
+    }
+    
     /**
-     * Get LDAP connection
+     * @param useReplica false to always read from the server (used by the replica and change listener)
+     */
+    public LdapDAO(boolean useReplica) {
+        this.useReplica = useReplica;
+    }
+    
+    /**
+     * Get LDAP connection (borrowed from the pool, already bound)
      */
     public LDAPConnection getConnection() throws LDAPException {
-        LDAPConnection conn = new LDAPConnection();
-        conn.connect(LDAP_HOST, LDAP_PORT);
-        conn.bind(3, ADMIN_DN, ADMIN_PASSWORD.getBytes());
-        return conn;
+        return POOL.borrow();
     }
     
     /**
-     * Close LDAP connection
+     * Close LDAP connection (returns it to the pool)
      */
     public void closeConnection(LDAPConnection conn) {
-        try {
-            if (conn != null && conn.isConnected()) {
-                conn.disconnect();
-            }
-        } catch (LDAPException e) {
-            e.printStackTrace();
+        POOL.release(conn);
+    }
+    
+    /**
+     * Discard a connection whose operation failed in a way that may have left it unusable;
+     * the closeConnection in the caller's finally then does nothing
+     */
+    public void invalidateIfBroken(LDAPConnection conn, LDAPException e) {
+        if (conn != null && (LdapConnectionPool.isConnectionFailure(e) || !conn.isConnected())) {
+            POOL.invalidate(conn);
         }
     }
     
     /**
-     * Search entries in LDAP
+     * Get the shared connection pool
+     */
+    public static LdapConnectionPool getPool() {
+        return POOL;
+    }
+    
+    /**
+     * Search entries in LDAP (all attributes)
      */
     public List<LDAPEntry> search(String baseDN, int scope, String filter) {
+        return search(baseDN, scope, filter, null);
+    }
+    
+    /**
+     * Search entries in LDAP returning only the requested attributes
+     * (null for all attributes, LdapConstants.dnOnly() for none).
+     * A missing base DN is an empty result.
+     *
+     * @throws DirectoryUnavailableException if no connection could be borrowed or the search failed,
+     *         rather than passing off an empty list as the answer
+     */
+    public List<LDAPEntry> search(String baseDN, int scope, String filter, String[] attrs) {
+        List<LDAPEntry> replicated = searchReplica(baseDN, scope, filter, attrs);
+        if (replicated != null) {
+            return replicated;
+        }
+        
         List<LDAPEntry> entries = new ArrayList<>();
         LDAPConnection conn = null;
         
         try {
             conn = getConnection();
-            LDAPSearchResults results = conn.search(baseDN, scope, filter, null, false);
+            LDAPSearchResults results = conn.search(baseDN, scope, filter, attrs, false);
             
             while (results.hasMore()) {
                 entries.add(results.next());
             }
         } catch (LDAPException e) {
-            e.printStackTrace();
+            invalidateIfBroken(conn, e);
+            if (e.getResultCode() != LDAPException.NO_SUCH_OBJECT) {
+                throw new DirectoryUnavailableException("Search of " + baseDN + " failed", e);
+            }
         } finally {
             closeConnection(conn);
         }
@@ -62,19 +136,87 @@ public class LdapDAO {
     }
     
     /**
-     * Search single entry in LDAP
+     * Search entry DNs in LDAP without transferring any attributes
+     */
+    public List<String> searchDNs(String baseDN, int scope, String filter) {
+        List<String> dns = new ArrayList<>();
+        for (LDAPEntry entry : search(baseDN, scope, filter, LdapConstants.dnOnly())) {
+            dns.add(entry.getDN());
+        }
+        return dns;
+    }
+    
+    /**
+     * Search entries lazily, one server page at a time.
+     * The caller must close the iterator (try-with-resources) to return the connection to the pool.
+     */
+    public LdapSearchIterator searchPaged(String baseDN, int scope, String filter, String[] attrs) {
+        List<LDAPEntry> replicated = searchReplica(baseDN, scope, filter, attrs);
+        if (replicated != null) {
+            return new LdapSearchIterator(replicated.iterator());
+        }
+        return new LdapSearchIterator(this, baseDN, scope, filter, attrs, SEARCH_PAGE_SIZE);
+    }
+    
+    /**
+     * Stream view over searchPaged; closing the stream releases the connection.
+     * If the search ends early the stream throws IncompleteSearchException where it would
+     * otherwise end, instead of looking complete.
+     */
+    public Stream<LDAPEntry> stream(String baseDN, int scope, String filter, String[] attrs) {
+        LdapSearchIterator iterator = searchPaged(baseDN, scope, filter, attrs);
+        Iterator<LDAPEntry> checked = new Iterator<LDAPEntry>() {
+            @Override
+            public boolean hasNext() {
+                if (iterator.hasNext()) {
+                    return true;
+                }
+                if (iterator.getFailure() != null) {
+                    throw new IncompleteSearchException(baseDN, iterator.getFailure());
+                }
+                return false;
+            }
+            
+            @Override
+            public LDAPEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return iterator.next();
+            }
+        };
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(checked, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(iterator::close);
+    }
+    
+    /**
+     * Search single entry in LDAP (all attributes)
      */
     public LDAPEntry searchSingle(String baseDN, int scope, String filter) {
+        return searchSingle(baseDN, scope, filter, null);
+    }
+    
+    /**
+     * Search single entry in LDAP returning only the requested attributes
+     */
+    public LDAPEntry searchSingle(String baseDN, int scope, String filter, String[] attrs) {
+        List<LDAPEntry> replicated = searchReplica(baseDN, scope, filter, attrs);
+        if (replicated != null) {
+            return replicated.isEmpty() ? null : replicated.get(0);
+        }
+        
         LDAPConnection conn = null;
         
         try {
             conn = getConnection();
-            LDAPSearchResults results = conn.search(baseDN, scope, filter, null, false);
+            LDAPSearchResults results = conn.search(baseDN, scope, filter, attrs, false);
             
             if (results.hasMore()) {
                 return results.next();
             }
         } catch (LDAPException e) {
+            invalidateIfBroken(conn, e);
             e.printStackTrace();
         } finally {
             closeConnection(conn);
@@ -91,8 +233,10 @@ public class LdapDAO {
         try {
             conn = getConnection();
             conn.add(entry);
+            DirectoryReplica.added(entry);
             return true;
         } catch (LDAPException e) {
+            invalidateIfBroken(conn, e);
             e.printStackTrace();
             return false;
         } finally {
@@ -104,14 +248,27 @@ public class LdapDAO {
      * Modify entry in LDAP
      */
     public boolean modifyEntry(String dn, LDAPModification[] mods) {
-        LDAPConnection conn = null;
         try {
-            conn = getConnection();
-            conn.modify(dn, mods);
+            modify(dn, mods);
             return true;
         } catch (LDAPException e) {
             e.printStackTrace();
             return false;
+        }
+    }
+    
+    /**
+     * Modify entry in LDAP, reporting why the server or the connection refused it
+     */
+    void modify(String dn, LDAPModification[] mods) throws LDAPException {
+        LDAPConnection conn = null;
+        try {
+            conn = getConnection();
+            conn.modify(dn, mods);
+            DirectoryReplica.modified(dn, mods);
+        } catch (LDAPException e) {
+            invalidateIfBroken(conn, e);
+            throw e;
         } finally {
             closeConnection(conn);
         }
@@ -121,48 +278,229 @@ public class LdapDAO {
      * Add member to group
      */
     public boolean addMemberToGroup(String groupDN, String memberDN) {
-        LDAPModification mod = new LDAPModification(
-            LDAPModification.ADD,
-            new LDAPAttribute(LdapConstants.ATTR_MEMBER, memberDN)
-        );
-        return modifyEntry(groupDN, new LDAPModification[]{mod});
+        return addMembersToGroup(groupDN, Collections.singletonList(memberDN));
     }
     
     /**
      * Remove member from group
      */
     public boolean removeMemberFromGroup(String groupDN, String memberDN) {
+        return removeMembersFromGroup(groupDN, Collections.singletonList(memberDN));
+    }
+    
+    /**
+     * Add several members to a group with one multi-valued modify.
+     * The server rejects the whole modify if any value is already present.
+     */
+    public boolean addMembersToGroup(String groupDN, List<String> memberDNs) {
+        return modifyMembers(groupDN, memberDNs, LDAPModification.ADD);
+    }
+    
+    /**
+     * Remove several members from a group with one multi-valued modify.
+     * The server rejects the whole modify if any value is missing.
+     */
+    public boolean removeMembersFromGroup(String groupDN, List<String> memberDNs) {
+        return modifyMembers(groupDN, memberDNs, LDAPModification.DELETE);
+    }
+    
+    private boolean modifyMembers(String groupDN, List<String> memberDNs, int op) {
+        if (memberDNs.size() == 1 && MemberWriteCoalescer.isEnabled()) {
+            try {
+                return MemberWriteCoalescer.submit(groupDN, memberDNs.get(0), op).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        
         LDAPModification mod = new LDAPModification(
-            LDAPModification.DELETE,
-            new LDAPAttribute(LdapConstants.ATTR_MEMBER, memberDN)
+            op,
+            new LDAPAttribute(LdapConstants.ATTR_MEMBER, memberDNs.toArray(new String[0]))
         );
-        return modifyEntry(groupDN, new LDAPModification[]{mod});
+        boolean modified = modifyEntry(groupDN, new LDAPModification[]{mod});
+        if (modified) {
+            for (String memberDN : memberDNs) {
+                memberValueChanged(groupDN, memberDN, op == LDAPModification.ADD);
+            }
+        }
+        return modified;
+    }
+    
+    /**
+     * Bookkeeping after a member value was added to / removed from a group on the server
+     */
+    void memberValueChanged(String groupDN, String memberDN, boolean added) {
+        if (added) {
+            MembershipIndex.memberAdded(groupDN, memberDN);
+        } else {
+            MembershipIndex.memberRemoved(groupDN, memberDN);
+        }
+        DirectoryChangeBus.publish(DirectoryChangeEvent.memberChange(groupDN, memberDN, added));
     }
     
     /**
      * Create organizational unit
      */
     public boolean createOU(String ouDN, String ouName) {
+        return addEntry(ouEntry(ouDN, ouName));
+    }
+    
+    /**
+     * Create group
+     */
+    public boolean createGroup(String groupDN, String groupName) {
+        return addEntry(groupEntry(groupDN, groupName));
+    }
+    
+    /**
+     * Build an organizational unit entry
+     */
+    public static LDAPEntry ouEntry(String ouDN, String ouName) {
         LDAPAttributeSet attributeSet = new LDAPAttributeSet();
         attributeSet.add(new LDAPAttribute(LdapConstants.ATTR_OBJECT_CLASS, LdapConstants.ORGANIZATIONAL_UNIT));
         attributeSet.add(new LDAPAttribute(LdapConstants.ATTR_OU, ouName));
-        
-        LDAPEntry newEntry = new LDAPEntry(ouDN, attributeSet);
-        return addEntry(newEntry);
+        return new LDAPEntry(ouDN, attributeSet);
     }
     
     /**
-     * Create group
+     * Build a group entry
      */
-    public boolean createGroup(String groupDN, String groupName) {
+    public static LDAPEntry groupEntry(String groupDN, String groupName) {
         LDAPAttributeSet attributeSet = new LDAPAttributeSet();
         attributeSet.add(new LDAPAttribute(LdapConstants.ATTR_OBJECT_CLASS, LdapConstants.GROUP_OF_NAMES));
         attributeSet.add(new LDAPAttribute(LdapConstants.ATTR_CN, groupName));
         // Add empty member initially (required for groupOfNames)
         attributeSet.add(new LDAPAttribute(LdapConstants.ATTR_MEMBER, ""));
+        return new LDAPEntry(groupDN, attributeSet);
+    }
+    
+    /**
+     * Add an entry and entries that depend only on it, on one connection. The root is added first;
+     * the children are then all sent before any response is awaited. If any add fails, the entries
+     * added (or sent without an answer) are deleted again, children first, retrying on a fresh
+     * connection if the original one fails. Rollback is best effort: if the server cannot be
+     * reached at all, entries can be left behind.
+     *
+     * @throws RollbackIncompleteException if the add failed and some of its entries could not be deleted
+     */
+    public boolean addEntryTree(LDAPEntry root, List<LDAPEntry> children) {
+        LDAPConnection conn = null;
+        List<LDAPEntry> added = new ArrayList<>();
+        // Children sent, and how many of their responses were read
+        int sent = 0;
+        int answered = 0;
         
-        LDAPEntry newEntry = new LDAPEntry(groupDN, attributeSet);
-        return addEntry(newEntry);
+        try {
+            conn = getConnection();
+            conn.add(root);
+            added.add(root);
+            
+            // Pipeline the children: one response queue per request, awaited after all were sent
+            List<LDAPResponseQueue> queues = new ArrayList<>(children.size());
+            for (LDAPEntry child : children) {
+                queues.add(conn.add(child, (LDAPResponseQueue) null));
+                sent++;
+            }
+            
+            LDAPException failure = null;
+            for (; answered < queues.size(); answered++) {
+                LDAPResponse response = (LDAPResponse) queues.get(answered).getResponse();
+                if (response.getResultCode() == LDAPException.SUCCESS) {
+                    added.add(children.get(answered));
+                } else if (failure == null) {
+                    failure = new LDAPException(response.getErrorMessage(), response.getResultCode(),
+                        response.getErrorMessage(), response.getMatchedDN());
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            
+            for (LDAPEntry entry : added) {
+                DirectoryReplica.added(entry);
+            }
+            return true;
+        } catch (LDAPException e) {
+            e.printStackTrace();
+            // A child whose response never arrived may have been added; it is below our root either way
+            List<LDAPEntry> undo = new ArrayList<>(added);
+            undo.addAll(children.subList(answered, sent));
+            List<String> leftBehind = new ArrayList<>();
+            conn = rollback(conn, undo, leftBehind);
+            if (!leftBehind.isEmpty()) {
+                throw new RollbackIncompleteException(root.getDN(), leftBehind);
+            }
+            return false;
+        } finally {
+            closeConnection(conn);
+        }
+    }
+    
+    /**
+     * Delete entries added by a failed addEntryTree, most recent first. Deletes go to the
+     * connection the adds used until one fails; that connection is then discarded and the rest
+     * (the failed delete included) go to a fresh pooled connection. DNs that could not be deleted
+     * are added to leftBehind. Returns the connection now held.
+     */
+    private LDAPConnection rollback(LDAPConnection conn, List<LDAPEntry> entries, List<String> leftBehind) {
+        boolean reconnected = false;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            String dn = entries.get(i).getDN();
+            LDAPException failure = deleteIfPresent(conn, dn);
+            if (failure != null && !reconnected) {
+                POOL.invalidate(conn);
+                reconnected = true;
+                try {
+                    conn = getConnection();
+                    failure = deleteIfPresent(conn, dn);
+                } catch (LDAPException e) {
+                    conn = null;
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                failure.printStackTrace();
+                leftBehind.add(dn);
+            }
+        }
+        return conn;
+    }
+    
+    /**
+     * Delete an entry, treating one that is already gone as deleted; returns the failure or null
+     */
+    private static LDAPException deleteIfPresent(LDAPConnection conn, String dn) {
+        if (conn == null) {
+            return new LDAPException("No connection", LDAPException.CONNECT_ERROR, null);
+        }
+        try {
+            conn.delete(dn);
+            return null;
+        } catch (LDAPException e) {
+            return e.getResultCode() == LDAPException.NO_SUCH_OBJECT ? null : e;
+        }
+    }
+    
+    /**
+     * Delete entry from LDAP
+     */
+    public boolean deleteEntry(String dn) {
+        LDAPConnection conn = null;
+        try {
+            conn = getConnection();
+            conn.delete(dn);
+            DirectoryReplica.removed(dn);
+            return true;
+        } catch (LDAPException e) {
+            invalidateIfBroken(conn, e);
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeConnection(conn);
+        }
     }
     
     /**
@@ -181,12 +519,18 @@ public class LdapDAO {
      * Check if entry exists
      */
     public boolean entryExists(String dn) {
+        Boolean replicated = useReplica ? DirectoryReplica.exists(dn) : null;
+        if (replicated != null) {
+            return replicated;
+        }
+        
         LDAPConnection conn = null;
         try {
             conn = getConnection();
-            LDAPEntry entry = conn.read(dn);
+            LDAPEntry entry = conn.read(dn, LdapConstants.dnOnly());
             return entry != null;
         } catch (LDAPException e) {
+            invalidateIfBroken(conn, e);
             return false;
         } finally {
             closeConnection(conn);
@@ -194,30 +538,180 @@ public class LdapDAO {
     }
     
     /**
-     * Check if user is member of specific group by checking member attribute
+     * Check if user is member of specific group.
+     * Members are stored as "uid=<uid>,<groupDN>" (see GroupManager/OrgManager), so the server
+     * answers this with a compare on that value instead of the group being read.
      */
     public boolean isMemberOfGroup(String uid, String groupDN) {
+        return hasMember(groupDN, "uid=" + uid + "," + groupDN);
+    }
+    
+    /**
+     * Check if user is member of group, or null if that could not be determined
+     */
+    public Boolean checkMemberOfGroup(String uid, String groupDN) {
+        return checkMember(groupDN, "uid=" + uid + "," + groupDN);
+    }
+    
+    /**
+     * Check if group has the given member value, using an LDAP compare so the cost
+     * does not grow with group size
+     */
+    public boolean hasMember(String groupDN, String memberDN) {
+        Boolean member = checkMember(groupDN, memberDN);
+        return member != null && member;
+    }
+    
+    /**
+     * Same as hasMember, but null when membership could not be determined
+     * (no pooled connection, connection lost, server error), so callers can avoid caching the answer
+     */
+    public Boolean checkMember(String groupDN, String memberDN) {
+        Boolean replicated = useReplica ? DirectoryReplica.hasMember(groupDN, memberDN) : null;
+        if (replicated != null) {
+            return replicated;
+        }
+        
+        LDAPConnection conn = null;
+        try {
+            conn = getConnection();
+            return conn.compare(groupDN, new LDAPAttribute(LdapConstants.ATTR_MEMBER, memberDN));
+        } catch (LDAPException e) {
+            invalidateIfBroken(conn, e);
+            switch (e.getResultCode()) {
+                case LDAPException.NO_SUCH_OBJECT:
+                case LDAPException.NO_SUCH_ATTRIBUTE:
+                case LDAPException.INVALID_DN_SYNTAX:
+                case LDAPException.INVALID_ATTRIBUTE_SYNTAX:
+                    // The group or the value does not exist: not a member
+                    return false;
+                default:
+                    e.printStackTrace();
+                    return null;
+            }
+        } finally {
+            closeConnection(conn);
+        }
+    }
+    
+    /**
+     * Find the DNs administered by a user, i.e. the parents of every admin group (cn=adminCN)
+     * under baseDN that has "uid=<uid>,cn=<adminCN>,<parentDN>" as a member.
+     * Answered from MembershipIndex when it is enabled and built; otherwise membership is matched server-side
+     * using SEARCH_ADMIN_MEMBER_FILTER, so no member lists are transferred. That path costs one DN-only
+     * search plus ceil(N/100) filter searches for N admin groups under baseDN: member has DN syntax, so the
+     * server cannot be asked for "every value starting with uid=<uid>" and only the index scales with the user.
+     *
+     * @throws DirectoryUnavailableException if the directory could not be searched; a partial list would
+     *         read as "not an admin" to permission checks
+     */
+    public List<String> findAdministeredDNs(String uid, String baseDN, String adminCN) {
+        List<String> indexed = useReplica ? MembershipIndex.findAdministeredDNs(uid, baseDN, adminCN) : null;
+        if (indexed != null) {
+            return indexed;
+        }
+        
+        List<String> replicated = useReplica ? DirectoryReplica.findAdministeredDNs(uid, baseDN, adminCN) : null;
+        if (replicated != null) {
+            return replicated;
+        }
+        
+        List<String> administeredDNs = new ArrayList<>();
         LDAPConnection conn = null;
+        
         try {
             conn = getConnection();
-            LDAPEntry entry = conn.read(groupDN);
             
-            if (entry != null) {
-                LDAPAttribute memberAttr = entry.getAttribute(LdapConstants.ATTR_MEMBER);
-                if (memberAttr != null) {
-                    String[] members = memberAttr.getStringValueArray();
-                    for (String member : members) {
-                        if (member.startsWith("uid=" + uid + ",")) {
-                            return true;
-                        }
+            // Locate the admin groups (DN only)
+            String adminGroupFilter = "(&" + LdapConstants.SEARCH_GROUP_FILTER
+                + "(" + LdapConstants.ATTR_CN + "=" + escapeFilterValue(adminCN) + "))";
+            LDAPSearchResults adminGroups = conn.search(baseDN, LDAPConnection.SCOPE_SUB,
+                adminGroupFilter, LdapConstants.dnOnly(), false);
+            
+            Map<String, String> parentByAdminGroup = new LinkedHashMap<>();
+            while (adminGroups.hasMore()) {
+                String adminGroupDN = adminGroups.next().getDN();
+                String parentDN = Dn.parentOf(adminGroupDN);
+                if (parentDN != null) {
+                    parentByAdminGroup.put(adminGroupDN.toLowerCase(), parentDN);
+                }
+            }
+            
+            // Ask the server which of them contain the user, a batch of OR-ed member filters at a time
+            List<String> parents = new ArrayList<>(parentByAdminGroup.values());
+            for (int start = 0; start < parents.size(); start += MEMBER_FILTER_BATCH_SIZE) {
+                int end = Math.min(start + MEMBER_FILTER_BATCH_SIZE, parents.size());
+                StringBuilder filter = new StringBuilder("(&(" + LdapConstants.ATTR_CN + "=")
+                    .append(escapeFilterValue(adminCN)).append(")(|");
+                for (String parentDN : parents.subList(start, end)) {
+                    filter.append(formatFilter(LdapConstants.SEARCH_ADMIN_MEMBER_FILTER, uid, adminCN, parentDN));
+                }
+                filter.append("))");
+                
+                LDAPSearchResults matches = conn.search(baseDN, LDAPConnection.SCOPE_SUB,
+                    filter.toString(), LdapConstants.dnOnly(), false);
+                while (matches.hasMore()) {
+                    String parentDN = parentByAdminGroup.get(matches.next().getDN().toLowerCase());
+                    if (parentDN != null) {
+                        administeredDNs.add(parentDN);
                     }
                 }
             }
-            return false;
         } catch (LDAPException e) {
-            return false;
+            invalidateIfBroken(conn, e);
+            throw new DirectoryUnavailableException("Admin lookup under " + baseDN + " failed", e);
         } finally {
             closeConnection(conn);
         }
+        
+        return administeredDNs;
+    }
+    
+    /**
+     * Answer a search from the replica, or null if it has to go to the server
+     */
+    private List<LDAPEntry> searchReplica(String baseDN, int scope, String filter, String[] attrs) {
+        return useReplica ? DirectoryReplica.search(baseDN, scope, filter, attrs) : null;
+    }
+    
+    /**
+     * Substitute {0}, {1}, ... placeholders in a filter template with escaped values
+     */
+    public static String formatFilter(String template, String... values) {
+        String filter = template;
+        for (int i = 0; i < values.length; i++) {
+            filter = filter.replace("{" + i + "}", escapeFilterValue(values[i]));
+        }
+        return filter;
+    }
+    
+    /**
+     * Escape a value for use inside an LDAP search filter (RFC 4515)
+     */
+    public static String escapeFilterValue(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\5c");
+                    break;
+                case '*':
+                    escaped.append("\\2a");
+                    break;
+                case '(':
+                    escaped.append("\\28");
+                    break;
+                case ')':
+                    escaped.append("\\29");
+                    break;
+                case '\0':
+                    escaped.append("\\00");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
     }
 }
\ No newline at end of file
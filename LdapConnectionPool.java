@@ -0,0 +1,249 @@
+package com.sreemat.ldap.dao;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchResults;
+import com.sreemat.ldap.constants.LdapConstants;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded, thread-safe pool of pre-bound LDAP connections
+ */
+public class LdapConnectionPool {
+    
+    private final String host;
+    private final int port;
+    private final String bindDN;
+    private final byte[] bindPassword;
+    
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long validateAfterIdleMillis;
+    private final long maxLifetimeMillis;
+    
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<LDAPConnection> idle = new LinkedBlockingDeque<>();
+    private final Map<LDAPConnection, PooledState> states = new ConcurrentHashMap<>();
+    
+    private volatile boolean closed;
+    
+    public LdapConnectionPool(String host, int port, String bindDN, String bindPassword,
+                              int maxSize, long borrowTimeoutMillis,
+                              long validateAfterIdleMillis, long maxLifetimeMillis) {
+        this.host = host;
+        this.port = port;
+        this.bindDN = bindDN;
+        this.bindPassword = bindPassword.getBytes();
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+    
+    /**
+     * Borrow a bound connection, waiting up to the borrow timeout for a free slot
+     */
+    public LDAPConnection borrow() throws LDAPException {
+        if (closed) {
+            throw new LDAPException("LDAP connection pool is closed", LDAPException.OTHER, null);
+        }
+        
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new LDAPException("Timed out waiting for LDAP connection",
+                    LDAPException.CONNECT_ERROR, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LDAPException("Interrupted waiting for LDAP connection",
+                LDAPException.CONNECT_ERROR, null);
+        }
+        
+        try {
+            LDAPConnection conn;
+            while ((conn = idle.pollFirst()) != null) {
+                if (isUsable(conn)) {
+                    states.get(conn).borrowed.set(true);
+                    return conn;
+                }
+                destroy(conn);
+            }
+            return create();
+        } catch (LDAPException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * Return a connection to the pool; expired or disconnected connections are discarded.
+     * Releasing a connection that is not currently borrowed (twice, or after invalidate) does nothing.
+     */
+    public void release(LDAPConnection conn) {
+        PooledState state = returned(conn);
+        if (state == null) {
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        if (closed || !conn.isConnected() || now - state.createdAt >= maxLifetimeMillis) {
+            destroy(conn);
+        } else {
+            state.lastUsed = now;
+            idle.offerFirst(conn);
+        }
+        permits.release();
+    }
+    
+    /**
+     * Discard a connection that failed mid-operation instead of returning it to the pool.
+     * Like release, does nothing for a connection that is not currently borrowed.
+     */
+    public void invalidate(LDAPConnection conn) {
+        if (returned(conn) == null) {
+            return;
+        }
+        destroy(conn);
+        permits.release();
+    }
+    
+    /**
+     * Whether a failure means the connection itself may be unusable (lost, timed out, out of step
+     * with the server), as opposed to the server rejecting the operation
+     */
+    public static boolean isConnectionFailure(LDAPException e) {
+        switch (e.getResultCode()) {
+            case LDAPException.SERVER_DOWN:
+            case LDAPException.CONNECT_ERROR:
+            case LDAPException.LDAP_TIMEOUT:
+            case LDAPException.ENCODING_ERROR:
+            case LDAPException.DECODING_ERROR:
+            case LDAPException.PROTOCOL_ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Close all idle connections and refuse further borrows
+     */
+    public void close() {
+        closed = true;
+        LDAPConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            destroy(conn);
+        }
+    }
+    
+    public int getMaxSize() {
+        return maxSize;
+    }
+    
+    public long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+    
+    public int getIdleCount() {
+        return idle.size();
+    }
+    
+    /**
+     * Open and bind a fresh connection outside the pool (for long-lived dedicated use)
+     */
+    public LDAPConnection openDedicated() throws LDAPException {
+        LDAPConnection conn = new LDAPConnection();
+        conn.connect(host, port);
+        try {
+            conn.bind(LDAPConnection.LDAP_V3, bindDN, bindPassword);
+        } catch (LDAPException e) {
+            conn.disconnect();
+            throw e;
+        }
+        return conn;
+    }
+    
+    private LDAPConnection create() throws LDAPException {
+        LDAPConnection conn = openDedicated();
+        PooledState state = new PooledState(System.currentTimeMillis());
+        state.borrowed.set(true);
+        states.put(conn, state);
+        return conn;
+    }
+    
+    /**
+     * Mark a borrowed connection as handed back; null if it is not ours or not currently borrowed
+     */
+    private PooledState returned(LDAPConnection conn) {
+        if (conn == null) {
+            return null;
+        }
+        PooledState state = states.get(conn);
+        return state != null && state.borrowed.compareAndSet(true, false) ? state : null;
+    }
+    
+    private boolean isUsable(LDAPConnection conn) {
+        PooledState state = states.get(conn);
+        if (state == null || !conn.isConnected() || !conn.isBound()) {
+            return false;
+        }
+        
+        long now = System.currentTimeMillis();
+        if (now - state.createdAt >= maxLifetimeMillis) {
+            return false;
+        }
+        
+        if (now - state.lastUsed >= validateAfterIdleMillis) {
+            return validate(conn);
+        }
+        return true;
+    }
+    
+    /**
+     * Cheap liveness probe: base-scoped read of the root DSE returning no attributes
+     */
+    private boolean validate(LDAPConnection conn) {
+        try {
+            LDAPSearchResults results = conn.search("", LDAPConnection.SCOPE_BASE,
+                "(objectClass=*)", LdapConstants.dnOnly(), false);
+            while (results.hasMore()) {
+                results.next();
+            }
+            return true;
+        } catch (LDAPException e) {
+            return false;
+        }
+    }
+    
+    private void destroy(LDAPConnection conn) {
+        states.remove(conn);
+        try {
+            if (conn.isConnected()) {
+                conn.disconnect();
+            }
+        } catch (LDAPException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Bookkeeping for a pooled connection
+     */
+    private static class PooledState {
+        private final long createdAt;
+        private volatile long lastUsed;
+        private final AtomicBoolean borrowed = new AtomicBoolean();
+        
+        PooledState(long createdAt) {
+            this.createdAt = createdAt;
+            this.lastUsed = createdAt;
+        }
+    }
+}
\ No newline at end of file
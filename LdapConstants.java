@@ -19,6 +19,9 @@ public class LdapConstants {
     // Super Admin Group
     public static final String SUPER_ADMIN_GROUP = "cn=SuperAdministrators," + INTERNAL_GROUPS;
     
+    // Name of the container holding the groups of an organization ("ou=groups,<orgDN>")
+    public static final String GROUPS_OU = "groups";
+    
     // Admin Group Names
     public static final String DOMAIN_ADMIN_CN = "DomainAdministrator";
     public static final String GROUP_ADMIN_CN = "GroupAdministrator";
@@ -39,6 +42,10 @@ public class LdapConstants {
     public static final String ATTR_OU = "ou";
     public static final String ATTR_CN = "cn";
     public static final String ATTR_MEMBER = "member";
+    public static final String ATTR_UID = "uid";
+    
+    // Attribute requesting no attributes (DN only, RFC 4511 "1.1")
+    public static final String NO_ATTRS = "1.1";
     
     // Branch Types
     public static final String BRANCH_INTERNAL = "internal";
@@ -48,4 +55,12 @@ public class LdapConstants {
     private LdapConstants() {
         throw new UnsupportedOperationException("This is a constants class and cannot be instantiated");
     }
+    
+    /**
+     * Attribute list requesting no attributes (DN only); a new array each call, since
+     * a shared one could be modified by any caller
+     */
+    public static String[] dnOnly() {
+        return new String[]{NO_ATTRS};
+    }
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+package com.sreemat.ldap.dao;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Dedicated executor for blocking LDAP work, so container request threads are released
+ * while LDAP I/O is in flight; a full queue fails fast.
+ *
+ * The connection pool is split between everything that borrows from it: the fan-out threads
+ * (LdapFanOut), the streamed responses (at most "ldap.stream.maxConcurrent", default a quarter
+ * of the pool, each holding a connection on a container thread until the body is written)
+ * and this executor, which gets the rest. So the borrowers never outnumber the connections
+ * and nobody has to wait out the borrow timeout.
+ */
+public class LdapExecutor {
+    
+    private static final int QUEUE_CAPACITY = 1000;
+    
+    private static final int STREAM_SLOTS = Integer.getInteger("ldap.stream.maxConcurrent",
+        Math.max(1, LdapDAO.getPool().getMaxSize() / 4));
+    
+    private static final Semaphore streamPermits = new Semaphore(STREAM_SLOTS, true);
+    
+    private static final ExecutorService executor = createExecutor(Math.max(1,
+        LdapDAO.getPool().getMaxSize() - LdapFanOut.getParallelism() - STREAM_SLOTS));
+    
+    private LdapExecutor() {
+    }
+    
+    /**
+     * Run blocking LDAP work on the LDAP executor.
+     * The future completes exceptionally (RejectedExecutionException) when the executor is saturated.
+     */
+    public static <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor);
+        } catch (RuntimeException e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+    
+    /**
+     * Take one of the slots set aside for streamed responses, waiting up to the pool's borrow timeout.
+     * Call from the StreamingOutput before reading from LDAP, and releaseStream() when it is done.
+     */
+    public static void acquireStream() throws IOException {
+        try {
+            if (!streamPermits.tryAcquire(LdapDAO.getPool().getBorrowTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                throw new IOException("Too many streamed responses in progress");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a streaming slot", e);
+        }
+    }
+    
+    public static void releaseStream() {
+        streamPermits.release();
+    }
+    
+    /**
+     * Stop accepting work and let queued tasks finish
+     */
+    public static void shutdown() {
+        executor.shutdown();
+    }
+    
+    private static ExecutorService createExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "ldap-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+package com.sreemat.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Bounded parallel execution of independent LDAP calls (e.g. one permission check per group).
+ * Results keep the input order. Uses its own threads, separate from LdapExecutor, so a handler
+ * running on LdapExecutor can fan out without waiting on itself.
+ *
+ * Concurrency is capped by the "ldap.fanout.parallelism" system property
+ * (default: a quarter of the connection pool; see LdapExecutor for how the pool is shared).
+ * There is no queue: when every fan-out thread is busy the caller runs the item itself, so
+ * fanning out never adds more connection borrowers than the parallelism, and a burst of
+ * requests cannot pile up work that would only time out waiting for a connection.
+ */
+public class LdapFanOut {
+    
+    private static final int PARALLELISM = Integer.getInteger("ldap.fanout.parallelism",
+        Math.max(1, LdapDAO.getPool().getMaxSize() / 4));
+    
+    private static final ExecutorService executor = createExecutor(PARALLELISM);
+    
+    private LdapFanOut() {
+    }
+    
+    /**
+     * Apply a function to every item in parallel, returning results in input order
+     */
+    public static <T, R> List<R> map(List<T> items, Function<T, R> function) {
+        List<R> results = new ArrayList<>(items.size());
+        if (items.size() <= 1 || PARALLELISM <= 1) {
+            for (T item : items) {
+                results.add(function.apply(item));
+            }
+            return results;
+        }
+        
+        List<CompletableFuture<R>> futures = new ArrayList<>(items.size());
+        for (T item : items) {
+            futures.add(CompletableFuture.supplyAsync(() -> function.apply(item), executor));
+        }
+        
+        for (CompletableFuture<R> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Keep the items matching a predicate, evaluated in parallel, in input order
+     */
+    public static <T> List<T> filter(List<T> items, Predicate<T> predicate) {
+        List<Boolean> matches = map(items, predicate::test);
+        List<T> kept = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            if (matches.get(i)) {
+                kept.add(items.get(i));
+            }
+        }
+        return kept;
+    }
+    
+    public static int getParallelism() {
+        return PARALLELISM;
+    }
+    
+    private static ExecutorService createExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "ldap-fanout-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,182 @@
+package com.sreemat.ldap.dao;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPReferralException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchResults;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily iterates over a search using Simple Paged Results, fetching one page at a time
+ * on a single pooled connection. Must be closed to return the connection to the pool.
+ */
+public class LdapSearchIterator implements Iterator<LDAPEntry>, AutoCloseable {
+    
+    private final LdapDAO ldapDAO;
+    private final String baseDN;
+    private final int scope;
+    private final String filter;
+    private final String[] attrs;
+    private final int pageSize;
+    
+    private LDAPConnection conn;
+    private LDAPSearchResults results;
+    private LDAPEntry nextEntry;
+    private boolean done;
+    private LDAPException failure;
+    
+    // Entries already in memory (replica results); no server paging when set
+    private final Iterator<LDAPEntry> preloaded;
+    
+    LdapSearchIterator(LdapDAO ldapDAO, String baseDN, int scope, String filter, String[] attrs, int pageSize) {
+        this.ldapDAO = ldapDAO;
+        this.baseDN = baseDN;
+        this.scope = scope;
+        this.filter = filter;
+        this.attrs = attrs;
+        this.pageSize = pageSize;
+        this.preloaded = null;
+    }
+    
+    LdapSearchIterator(Iterator<LDAPEntry> preloaded) {
+        this.ldapDAO = null;
+        this.baseDN = null;
+        this.scope = 0;
+        this.filter = null;
+        this.attrs = null;
+        this.pageSize = 0;
+        this.preloaded = preloaded;
+    }
+    
+    @Override
+    public boolean hasNext() {
+        if (nextEntry == null && !done) {
+            advance();
+        }
+        return nextEntry != null;
+    }
+    
+    @Override
+    public LDAPEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        LDAPEntry entry = nextEntry;
+        nextEntry = null;
+        return entry;
+    }
+    
+    /**
+     * The error that ended the iteration early, or null if it completed normally
+     */
+    public LDAPException getFailure() {
+        return failure;
+    }
+    
+    /**
+     * Return the connection to the pool. If the search is left before its last page, the rest of the
+     * current page (at most pageSize entries) is read for the server's cookie, and a size-0 request
+     * with that cookie tells the server to discard the paged search (RFC 2696, section 3) instead of
+     * keeping it open on the pooled connection. If that fails the connection is discarded instead.
+     */
+    @Override
+    public void close() {
+        if (conn == null) {
+            done = true;
+            return;
+        }
+        
+        try {
+            if (!done && results != null) {
+                while (results.hasMore()) {
+                    try {
+                        results.next();
+                    } catch (LDAPReferralException e) {
+                        // Referrals are not followed
+                    }
+                }
+                byte[] cookie = SimplePagedResultsControl.getCookie(results.getResponseControls());
+                if (cookie != null) {
+                    LDAPSearchResults cancelled = search(0, cookie);
+                    while (cancelled.hasMore()) {
+                        cancelled.next();
+                    }
+                }
+            }
+        } catch (LDAPException e) {
+            e.printStackTrace();
+            // The paged search may still be open on the server
+            LdapDAO.getPool().invalidate(conn);
+        } finally {
+            done = true;
+            results = null;
+            ldapDAO.closeConnection(conn);
+            conn = null;
+        }
+    }
+    
+    private void advance() {
+        if (preloaded != null) {
+            if (preloaded.hasNext()) {
+                nextEntry = preloaded.next();
+            } else {
+                done = true;
+            }
+            return;
+        }
+        
+        try {
+            if (conn == null) {
+                conn = ldapDAO.getConnection();
+                fetchPage(null);
+            }
+            
+            while (true) {
+                if (results.hasMore()) {
+                    try {
+                        nextEntry = results.next();
+                        return;
+                    } catch (LDAPReferralException e) {
+                        // Referrals are not followed
+                        continue;
+                    }
+                }
+                
+                byte[] cookie = SimplePagedResultsControl.getCookie(results.getResponseControls());
+                if (cookie == null) {
+                    finish();
+                    return;
+                }
+                fetchPage(cookie);
+            }
+        } catch (LDAPException e) {
+            e.printStackTrace();
+            failure = e;
+            ldapDAO.invalidateIfBroken(conn, e);
+            finish();
+        }
+    }
+    
+    private void fetchPage(byte[] cookie) throws LDAPException {
+        results = search(pageSize, cookie);
+    }
+    
+    private LDAPSearchResults search(int size, byte[] cookie) throws LDAPException {
+        LDAPSearchConstraints constraints = (LDAPSearchConstraints) conn.getSearchConstraints().clone();
+        constraints.setControls(new SimplePagedResultsControl(size, cookie, false));
+        return conn.search(baseDN, scope, filter, attrs, false, constraints);
+    }
+    
+    private void finish() {
+        done = true;
+        results = null;
+        if (conn != null) {
+            ldapDAO.closeConnection(conn);
+            conn = null;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package com.sreemat.ldap.dto;
+
+/**
+ * Response DTO for the outcome of one uid in a bulk membership change
+ */
+public class MemberResult {
+    
+    /**
+     * Outcome of a bulk membership change for one uid
+     */
+    public enum Status {
+        ADDED,
+        REMOVED,
+        // Already a member (add) or not a member (remove)
+        UNCHANGED,
+        // Listed more than once; the first occurrence carries the outcome
+        DUPLICATE,
+        INVALID,
+        FAILED
+    }
+    
+    private String uid;
+    private Status status;
+    private String message;
+    
+    public MemberResult() {
+    }
+    
+    public MemberResult(String uid, Status status, String message) {
+        this.uid = uid;
+        this.status = status;
+        this.message = message;
+    }
+    
+    // Getters and Setters
+    public String getUid() {
+        return uid;
+    }
+    
+    public void setUid(String uid) {
+        this.uid = uid;
+    }
+    
+    public Status getStatus() {
+        return status;
+    }
+    
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+    
+    public String getMessage() {
+        return message;
+    }
+    
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
\ No newline at end of file
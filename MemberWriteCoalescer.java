@@ -0,0 +1,234 @@
+package com.sreemat.ldap.dao;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPModification;
+import com.sreemat.ldap.constants.LdapConstants;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opt-in (-Dldap.write.coalesce.enabled=true) batching of single member adds/removes.
+ * Writes to the same group arriving within a short window ("ldap.write.coalesce.windowMs",
+ * default 5) or up to a size threshold ("ldap.write.coalesce.maxBatch", default 200) are sent
+ * as one modify, so concurrent writers to a hot group cost one server round trip.
+ *
+ * Every caller gets its own future. If the server rejects a batch because of a value (the modify
+ * is atomic, so one member already present or missing fails all of them) each write is retried on
+ * its own, in submission order. Any other failure is shared by every write in the batch and is not
+ * retried: a lost connection fails the futures with DirectoryUnavailableException, anything else
+ * (e.g. the group is gone) completes them with false.
+ */
+public class MemberWriteCoalescer {
+    
+    private static final boolean ENABLED = Boolean.getBoolean("ldap.write.coalesce.enabled");
+    private static final long WINDOW_MS = Long.getLong("ldap.write.coalesce.windowMs", 5);
+    private static final int MAX_BATCH = Integer.getInteger("ldap.write.coalesce.maxBatch", 200);
+    private static final int FLUSH_THREADS = 4;
+    
+    private static final LdapDAO ldapDAO = new LdapDAO();
+    
+    // group DN (lower case) -> batch still accepting writes
+    private static final Map<String, Batch> open = new ConcurrentHashMap<>();
+    
+    private static final ScheduledExecutorService flusher = ENABLED ? createFlusher() : null;
+    
+    private MemberWriteCoalescer() {
+    }
+    
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+    
+    /**
+     * Queue a member ADD or DELETE on a group; the future completes with whether it was applied
+     */
+    public static CompletableFuture<Boolean> submit(String groupDN, String memberDN, int op) {
+        PendingWrite write = new PendingWrite(memberDN, op);
+        String key = groupDN.toLowerCase();
+        Batch[] full = new Batch[1];
+        
+        open.compute(key, (k, batch) -> {
+            if (batch == null) {
+                Batch created = new Batch(groupDN);
+                flusher.schedule(() -> flushIfOpen(k, created), WINDOW_MS, TimeUnit.MILLISECONDS);
+                batch = created;
+            }
+            batch.writes.add(write);
+            if (batch.writes.size() >= MAX_BATCH) {
+                // Close it now; the scheduled flush will find it gone
+                full[0] = batch;
+                return null;
+            }
+            return batch;
+        });
+        
+        if (full[0] != null) {
+            Batch batch = full[0];
+            flusher.execute(() -> flush(batch));
+        }
+        return write.result;
+    }
+    
+    private static void flushIfOpen(String key, Batch batch) {
+        if (open.remove(key, batch)) {
+            flush(batch);
+        }
+    }
+    
+    private static void flush(Batch batch) {
+        try {
+            try {
+                ldapDAO.modify(batch.groupDN, toModifications(batch.writes));
+                for (PendingWrite write : batch.writes) {
+                    applied(batch, write);
+                }
+                return;
+            } catch (LDAPException e) {
+                if (!isValueError(e)) {
+                    e.printStackTrace();
+                    failAll(batch.writes, 0, e);
+                    return;
+                }
+            }
+            
+            // Batch rejected because of a value: find out which writes apply, one at a time
+            for (int i = 0; i < batch.writes.size(); i++) {
+                PendingWrite write = batch.writes.get(i);
+                LDAPModification mod = new LDAPModification(write.op,
+                    new LDAPAttribute(LdapConstants.ATTR_MEMBER, write.memberDN));
+                try {
+                    ldapDAO.modify(batch.groupDN, new LDAPModification[]{mod});
+                    applied(batch, write);
+                } catch (LDAPException e) {
+                    if (isValueError(e)) {
+                        write.result.complete(false);
+                    } else {
+                        e.printStackTrace();
+                        failAll(batch.writes, i, e);
+                        return;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            for (PendingWrite write : batch.writes) {
+                write.result.completeExceptionally(e);
+            }
+        }
+    }
+    
+    private static void applied(Batch batch, PendingWrite write) {
+        ldapDAO.memberValueChanged(batch.groupDN, write.memberDN, write.op == LDAPModification.ADD);
+        write.result.complete(true);
+    }
+    
+    /**
+     * Complete writes[from..] for a failure that is not about any one value
+     */
+    private static void failAll(List<PendingWrite> writes, int from, LDAPException e) {
+        boolean connectionLost = LdapConnectionPool.isConnectionFailure(e);
+        for (PendingWrite write : writes.subList(from, writes.size())) {
+            if (connectionLost) {
+                write.result.completeExceptionally(new DirectoryUnavailableException("Member write failed", e));
+            } else {
+                write.result.complete(false);
+            }
+        }
+    }
+    
+    /**
+     * Whether the server rejected the modify because of a member value, so splitting the batch helps
+     */
+    private static boolean isValueError(LDAPException e) {
+        switch (e.getResultCode()) {
+            case LDAPException.ATTRIBUTE_OR_VALUE_EXISTS:
+            case LDAPException.NO_SUCH_ATTRIBUTE:
+            case LDAPException.INVALID_ATTRIBUTE_SYNTAX:
+            case LDAPException.CONSTRAINT_VIOLATION:
+            case LDAPException.OBJECT_CLASS_VIOLATION:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Merge consecutive writes of the same kind into one multi-valued modification.
+     * A value repeated within a run starts a new modification, keeping submission order.
+     */
+    private static LDAPModification[] toModifications(List<PendingWrite> writes) {
+        List<LDAPModification> mods = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int runOp = -1;
+        
+        for (PendingWrite write : writes) {
+            if (write.op != runOp || !seen.add(write.memberDN.toLowerCase())) {
+                if (!values.isEmpty()) {
+                    mods.add(memberModification(runOp, values));
+                }
+                values = new ArrayList<>();
+                seen.clear();
+                seen.add(write.memberDN.toLowerCase());
+                runOp = write.op;
+            }
+            values.add(write.memberDN);
+        }
+        if (!values.isEmpty()) {
+            mods.add(memberModification(runOp, values));
+        }
+        return mods.toArray(new LDAPModification[0]);
+    }
+    
+    private static LDAPModification memberModification(int op, List<String> values) {
+        return new LDAPModification(op, new LDAPAttribute(LdapConstants.ATTR_MEMBER, values.toArray(new String[0])));
+    }
+    
+    private static ScheduledExecutorService createFlusher() {
+        AtomicInteger counter = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(FLUSH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "ldap-write-coalescer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+    
+    /**
+     * Writes to one group collected during one window
+     */
+    private static final class Batch {
+        private final String groupDN;
+        // Only appended to inside open.compute, and read after the batch left the map
+        private final List<PendingWrite> writes = new ArrayList<>();
+        
+        Batch(String groupDN) {
+            this.groupDN = groupDN;
+        }
+    }
+    
+    /**
+     * One caller's write
+     */
+    private static final class PendingWrite {
+        private final String memberDN;
+        private final int op;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        
+        PendingWrite(String memberDN, int op) {
+            this.memberDN = memberDN;
+            this.op = op;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,497 @@
+package com.sreemat.ldap.cache;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.dao.LdapDAO;
+import com.sreemat.ldap.dao.LdapSearchIterator;
+import com.sreemat.ldap.sync.DirectoryChangeBus;
+import com.sreemat.ldap.sync.DirectoryChangeEvent;
+import com.sreemat.ldap.sync.DirectoryChangeListener;
+import com.sreemat.ldap.utils.Dn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Reverse membership index: uid -> groups whose member attribute lists "uid=<uid>,<groupDN>",
+ * including DomainAdministrator and GroupAdministrator groups. Answers "what does this uid
+ * administer" from the groups of that uid instead of a search over every admin group.
+ *
+ * Each index numbers its own groups, so ids (and the DNs behind them) go away with the index.
+ * Memberships are held as small sets of ids per uid, and every group carries its admin cn and
+ * branch, so a lookup only looks at the groups of the one uid.
+ *
+ * Opt-in with -Dldap.membershipIndex.enabled=true, since it holds the members of every group.
+ * Built with one paged search per branch on a background thread, never on a request: until the
+ * first build completes lookups return null and callers go to the server, and once the TTL has
+ * passed the previous index keeps answering while a single rebuild runs. Kept current by LdapDAO
+ * member writes and by directory change events.
+ */
+public class MembershipIndex {
+    
+    private static final boolean ENABLED = Boolean.getBoolean("ldap.membershipIndex.enabled");
+    
+    private static final long TTL_MS = 30000;
+    private static final long LIVE_TTL_MS = 15 * 60 * 1000;
+    
+    private static final String[] BRANCHES = {LdapConstants.INTERNAL_GROUPS, LdapConstants.EXTERNAL_GROUPS};
+    private static final String GROUPS_WITH_MEMBERS_FILTER = "(&" + LdapConstants.SEARCH_GROUP_FILTER
+        + "(" + LdapConstants.ATTR_MEMBER + "=*))";
+    
+    private static final LdapDAO ldapDAO = new LdapDAO();
+    
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ldap-membership-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicBoolean buildScheduled = new AtomicBoolean();
+    // Bumped when whole subtrees change; a build that started before is discarded and redone
+    private static final AtomicLong generation = new AtomicLong();
+    
+    private static volatile Index index;
+    // While a build runs: groups (lower case DN) changed meanwhile, re-read onto the new index
+    private static volatile Set<String> changedDuringBuild;
+    private static boolean installed;
+    
+    private MembershipIndex() {
+    }
+    
+    /**
+     * Subscribe to directory change events and start the first build (call at application startup,
+     * after DirectoryReplica)
+     */
+    public static synchronized void install() {
+        if (!ENABLED || installed) {
+            return;
+        }
+        DirectoryChangeBus.subscribe(MembershipIndex::onChange);
+        installed = true;
+        scheduleBuild();
+    }
+    
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+    
+    /**
+     * DNs administered by a user under baseDN: the parents of the cn=adminCN groups listing the user.
+     * Same contract as LdapDAO.findAdministeredDNs; null if the index is disabled or not built yet.
+     */
+    public static List<String> findAdministeredDNs(String uid, String baseDN, String adminCN) {
+        Index current = current();
+        if (current == null) {
+            return null;
+        }
+        
+        List<String> administeredDNs = new ArrayList<>();
+        for (String groupDN : current.administeredBy(uid, adminCN, baseDN)) {
+            administeredDNs.add(Dn.parentOf(groupDN));
+        }
+        return administeredDNs;
+    }
+    
+    /**
+     * Every group DN (admin groups included) listing the user, or null if the index is disabled or not built yet
+     */
+    public static List<String> getGroupsOf(String uid) {
+        Index current = current();
+        if (current == null) {
+            return null;
+        }
+        
+        return current.groupsOf(uid);
+    }
+    
+    /**
+     * A member value was added on the server
+     */
+    public static void memberAdded(String groupDN, String memberDN) {
+        recordChange(groupDN);
+        Index current = index;
+        String uid = uidOf(groupDN, memberDN);
+        if (current != null && uid != null) {
+            current.add(groupDN, uid);
+        }
+    }
+    
+    /**
+     * A member value was removed on the server
+     */
+    public static void memberRemoved(String groupDN, String memberDN) {
+        recordChange(groupDN);
+        Index current = index;
+        String uid = uidOf(groupDN, memberDN);
+        if (current != null && uid != null) {
+            current.remove(groupDN, uid);
+        }
+    }
+    
+    /**
+     * Drop the index and rebuild it in the background; lookups go to the server meanwhile
+     */
+    public static void invalidateAll() {
+        generation.incrementAndGet();
+        index = null;
+        if (ENABLED) {
+            scheduleBuild();
+        }
+    }
+    
+    /**
+     * The index if built, scheduling a rebuild (and still returning it) once the TTL has passed
+     */
+    private static Index current() {
+        if (!ENABLED) {
+            return null;
+        }
+        Index current = index;
+        long ttl = DirectoryChangeListener.isLive() ? LIVE_TTL_MS : TTL_MS;
+        if (current == null || System.currentTimeMillis() - current.loadedAt >= ttl) {
+            scheduleBuild();
+        }
+        return current;
+    }
+    
+    private static void scheduleBuild() {
+        if (!buildScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        builder.execute(() -> {
+            try {
+                build();
+            } finally {
+                buildScheduled.set(false);
+            }
+        });
+    }
+    
+    private static void build() {
+        long startGeneration = generation.get();
+        Set<String> changed = ConcurrentHashMap.newKeySet();
+        changedDuringBuild = changed;
+        try {
+            Index loaded = load();
+            if (loaded == null || generation.get() != startGeneration) {
+                // Failed, or subtrees changed under it; the next lookup schedules another build
+                return;
+            }
+            
+            index = loaded;
+            if (generation.get() != startGeneration) {
+                index = null;
+                return;
+            }
+            changedDuringBuild = null;
+            for (String groupDN : changed) {
+                reloadGroup(loaded, groupDN);
+            }
+        } finally {
+            changedDuringBuild = null;
+        }
+    }
+    
+    private static Index load() {
+        Index loaded = new Index(System.currentTimeMillis());
+        for (String branchDN : BRANCHES) {
+            try (LdapSearchIterator groups = ldapDAO.searchPaged(branchDN, LDAPConnection.SCOPE_SUB,
+                    GROUPS_WITH_MEMBERS_FILTER, new String[]{LdapConstants.ATTR_MEMBER})) {
+                while (groups.hasNext()) {
+                    loaded.putGroup(groups.next());
+                }
+                if (groups.getFailure() != null) {
+                    groups.getFailure().printStackTrace();
+                    return null;
+                }
+            }
+        }
+        return loaded;
+    }
+    
+    private static void recordChange(String groupDN) {
+        Set<String> changed = changedDuringBuild;
+        if (changed != null && groupDN != null) {
+            changed.add(groupDN.toLowerCase());
+        }
+    }
+    
+    private static void onChange(DirectoryChangeEvent event) {
+        switch (event.getType()) {
+            case RESYNC:
+            case ORG_REMOVED:
+            case ORG_RENAMED:
+                // Whole subtrees of groups changed DN or went away
+                invalidateAll();
+                return;
+            case GROUP_RENAMED:
+            case ADMIN_CHANGED:
+                recordChange(event.getPreviousDN());
+                recordChange(event.getDn());
+                break;
+            default:
+                recordChange(event.getDn());
+                break;
+        }
+        
+        Index current = index;
+        if (current == null) {
+            return;
+        }
+        
+        switch (event.getType()) {
+            case GROUP_REMOVED:
+                current.removeGroup(event.getDn());
+                break;
+            case GROUP_RENAMED:
+                current.removeGroup(event.getPreviousDN());
+                reloadGroup(current, event.getDn());
+                break;
+            case GROUP_ADDED:
+            case MEMBERS_CHANGED:
+                reloadGroup(current, event.getDn());
+                break;
+            case ADMIN_CHANGED:
+                // With a uid it is one of our own writes, already applied by memberAdded/memberRemoved
+                if (event.getUid() == null) {
+                    if (event.getPreviousDN() != null) {
+                        current.removeGroup(event.getPreviousDN());
+                    }
+                    reloadGroup(current, event.getDn());
+                }
+                break;
+            default:
+                // MEMBER_ADDED / MEMBER_REMOVED come from our own writes, already applied
+                break;
+        }
+    }
+    
+    private static void reloadGroup(Index current, String groupDN) {
+        LDAPEntry group = ldapDAO.searchSingle(groupDN, LDAPConnection.SCOPE_BASE, LdapConstants.SEARCH_GROUP_FILTER,
+            new String[]{LdapConstants.ATTR_MEMBER});
+        current.removeGroup(groupDN);
+        if (group != null) {
+            current.putGroup(group);
+        }
+    }
+    
+    private static boolean isBranch(String dn) {
+        for (String branchDN : BRANCHES) {
+            if (branchDN.equalsIgnoreCase(dn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Extract the uid from a conventional "uid=<uid>,<groupDN>" member value, or null
+     */
+    private static String uidOf(String groupDN, String memberDN) {
+        Dn member = Dn.parse(memberDN);
+        if (member == null || !member.isType(LdapConstants.ATTR_UID) || member.size() < 2
+                || !member.parent().equalsIgnoreCase(groupDN)) {
+            return null;
+        }
+        return member.value();
+    }
+    
+    /**
+     * One loaded index
+     */
+    private static final class Index {
+        private final long loadedAt;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        // Groups of this index by id, and group DN (lower case) -> id
+        private final List<Group> groups = new ArrayList<>();
+        private final Map<String, Integer> groupIds = new HashMap<>();
+        // uid (lower case) -> ids of the groups listing it
+        private final Map<String, Set<Integer>> groupsByUid = new HashMap<>();
+        // group id -> uids (lower case), needed to undo a group when it changes externally
+        private final Map<Integer, Set<String>> uidsByGroup = new HashMap<>();
+        
+        Index(long loadedAt) {
+            this.loadedAt = loadedAt;
+        }
+        
+        List<String> groupsOf(String uid) {
+            lock.readLock().lock();
+            try {
+                List<String> groupDNs = new ArrayList<>();
+                for (int groupId : groupsByUid.getOrDefault(uid.toLowerCase(), Collections.emptySet())) {
+                    groupDNs.add(groups.get(groupId).dn);
+                }
+                return groupDNs;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        /**
+         * DNs of the admin groups with the cn under baseDN that list the user
+         */
+        List<String> administeredBy(String uid, String adminCN, String baseDN) {
+            boolean wholeBranch = isBranch(baseDN);
+            List<String> adminGroupDNs = new ArrayList<>();
+            
+            lock.readLock().lock();
+            try {
+                for (int groupId : groupsByUid.getOrDefault(uid.toLowerCase(), Collections.emptySet())) {
+                    Group group = groups.get(groupId);
+                    if (!adminCN.equalsIgnoreCase(group.adminCN)) {
+                        continue;
+                    }
+                    if (wholeBranch ? baseDN.equalsIgnoreCase(group.branchDN) : isWithin(group.dn, baseDN)) {
+                        adminGroupDNs.add(group.dn);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return adminGroupDNs;
+        }
+        
+        void putGroup(LDAPEntry group) {
+            String groupDN = group.getDN();
+            LDAPAttribute members = group.getAttribute(LdapConstants.ATTR_MEMBER);
+            if (members == null) {
+                return;
+            }
+            for (String memberDN : members.getStringValueArray()) {
+                String uid = uidOf(groupDN, memberDN);
+                if (uid != null) {
+                    add(groupDN, uid);
+                }
+            }
+        }
+        
+        void add(String groupDN, String uid) {
+            String uidKey = uid.toLowerCase();
+            
+            lock.writeLock().lock();
+            try {
+                int groupId = idOf(groupDN);
+                uidsByGroup.computeIfAbsent(groupId, key -> new HashSet<>()).add(uidKey);
+                groupsByUid.computeIfAbsent(uidKey, key -> new HashSet<>()).add(groupId);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        void remove(String groupDN, String uid) {
+            String uidKey = uid.toLowerCase();
+            
+            lock.writeLock().lock();
+            try {
+                Integer groupId = groupIds.get(groupDN.toLowerCase());
+                if (groupId == null) {
+                    return;
+                }
+                Set<String> uids = uidsByGroup.get(groupId);
+                if (uids != null) {
+                    uids.remove(uidKey);
+                }
+                Set<Integer> groupsOfUid = groupsByUid.get(uidKey);
+                if (groupsOfUid != null) {
+                    groupsOfUid.remove(groupId);
+                    if (groupsOfUid.isEmpty()) {
+                        groupsByUid.remove(uidKey);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        /**
+         * Drop every membership of a group (its id stays assigned until the index is rebuilt)
+         */
+        void removeGroup(String groupDN) {
+            lock.writeLock().lock();
+            try {
+                Integer groupId = groupIds.get(groupDN.toLowerCase());
+                if (groupId == null) {
+                    return;
+                }
+                Set<String> uids = uidsByGroup.remove(groupId);
+                if (uids != null) {
+                    for (String uidKey : uids) {
+                        Set<Integer> groupsOfUid = groupsByUid.get(uidKey);
+                        if (groupsOfUid != null) {
+                            groupsOfUid.remove(groupId);
+                            if (groupsOfUid.isEmpty()) {
+                                groupsByUid.remove(uidKey);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        /**
+         * Id of a group, assigning the next one if it is new to this index (caller holds the write lock)
+         */
+        private int idOf(String groupDN) {
+            Integer groupId = groupIds.get(groupDN.toLowerCase());
+            if (groupId == null) {
+                groupId = groups.size();
+                groups.add(new Group(groupDN));
+                groupIds.put(groupDN.toLowerCase(), groupId);
+            }
+            return groupId;
+        }
+        
+        private static boolean isWithin(String groupDN, String baseDN) {
+            Dn group = Dn.parse(groupDN);
+            return group != null && group.isWithin(baseDN);
+        }
+    }
+    
+    /**
+     * A group known to an index, with the admin cn and branch it falls under
+     */
+    private static final class Group {
+        private final String dn;
+        // DOMAIN_ADMIN_CN or GROUP_ADMIN_CN for admin groups, else null
+        private final String adminCN;
+        // Branch DN the group is in, or null
+        private final String branchDN;
+        
+        Group(String dn) {
+            this.dn = dn;
+            Dn parsed = Dn.parse(dn);
+            
+            String cn = null;
+            String branch = null;
+            if (parsed != null) {
+                for (String candidate : new String[]{LdapConstants.DOMAIN_ADMIN_CN, LdapConstants.GROUP_ADMIN_CN}) {
+                    if (parsed.rdnIs(0, LdapConstants.ATTR_CN, candidate)) {
+                        cn = candidate;
+                    }
+                }
+                for (String candidate : BRANCHES) {
+                    if (parsed.isBelow(candidate)) {
+                        branch = candidate;
+                    }
+                }
+            }
+            this.adminCN = cn;
+            this.branchDN = branch;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,408 @@
+package com.sreemat.ldap.cache;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.dao.LdapDAO;
+import com.sreemat.ldap.dao.LdapSearchIterator;
+import com.sreemat.ldap.sync.DirectoryChangeListener;
+import com.sreemat.ldap.utils.Dn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * In-memory snapshot of the organization tree of a branch, with the DomainAdministrator
+ * uids of every organization. Built from a single subtree search and cached per branch.
+ *
+ * Organizations are numbered in pre-order, so a subtree is a contiguous id range; the orgs each
+ * uid administers are kept as a sorted array of those ids (only as long as the number of orgs the
+ * uid administers) and visibility is computed over id ranges.
+ * Siblings are ordered by DN (case-insensitive), so the pre-order is the same for the same tree
+ * whatever order the server returned the entries in; listings and offset cursors rely on that.
+ */
+public class OrgHierarchy {
+    
+    // How long a snapshot is served before it is rebuilt from LDAP
+    private static final long SNAPSHOT_TTL_MS = 30000;
+    
+    // Same, while the change listener delivers invalidations
+    private static final long LIVE_SNAPSHOT_TTL_MS = 15 * 60 * 1000;
+    
+    // Organizations and their DomainAdministrator groups, in one search
+    private static final String HIERARCHY_FILTER = "(|" + LdapConstants.SEARCH_OU_FILTER
+        + "(&" + LdapConstants.SEARCH_GROUP_FILTER
+        + "(" + LdapConstants.ATTR_CN + "=" + LdapConstants.DOMAIN_ADMIN_CN + ")))";
+    
+    // Sibling order (and so pre-order): DN, case-insensitive
+    private static final Comparator<Node> NODE_ORDER = Comparator.comparing(node -> node.key);
+    
+    private static final LdapDAO ldapDAO = new LdapDAO();
+    private static final Map<String, OrgHierarchy> snapshots = new ConcurrentHashMap<>();
+    // One rebuild per branch at a time
+    private static final Map<String, ReentrantLock> loadLocks = new ConcurrentHashMap<>();
+    // Bumped on every invalidation so a rebuild that raced with it is not cached
+    private static final AtomicLong generation = new AtomicLong();
+    
+    private final String branchDN;
+    private final long loadedAt;
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final List<Node> roots = new ArrayList<>();
+    // Nodes by pre-order id
+    private Node[] preorder = new Node[0];
+    // uid -> ids (ascending) of the orgs whose DomainAdministrator group lists it
+    private final Map<String, int[]> adminOrgsByUid = new HashMap<>();
+    
+    private OrgHierarchy(String branchDN, long loadedAt) {
+        this.branchDN = branchDN;
+        this.loadedAt = loadedAt;
+    }
+    
+    /**
+     * Get the (cached) hierarchy of a branch DN, rebuilding it when the snapshot expired.
+     * Only one caller rebuilds a branch; the others keep getting the expired snapshot meanwhile,
+     * or wait for the rebuild if there is none. A failed rebuild keeps the previous snapshot.
+     * Returns null only if the branch has never been loaded successfully.
+     */
+    public static OrgHierarchy forBranch(String branchDN) {
+        String key = normalize(branchDN);
+        OrgHierarchy hierarchy = snapshots.get(key);
+        if (hierarchy != null && !hierarchy.isExpired()) {
+            return hierarchy;
+        }
+        
+        ReentrantLock lock = loadLocks.computeIfAbsent(key, k -> new ReentrantLock());
+        if (hierarchy != null) {
+            if (!lock.tryLock()) {
+                // Already being rebuilt
+                return hierarchy;
+            }
+        } else {
+            lock.lock();
+        }
+        
+        try {
+            OrgHierarchy current = snapshots.get(key);
+            if (current != null && !current.isExpired()) {
+                return current;
+            }
+            
+            long startGeneration = generation.get();
+            OrgHierarchy loaded = load(branchDN);
+            if (loaded == null) {
+                return current != null ? current : hierarchy;
+            }
+            if (generation.get() == startGeneration) {
+                snapshots.put(key, loaded);
+            }
+            return loaded;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Get the hierarchy of the branch containing the given org DN, or null if the DN is in no branch
+     */
+    public static OrgHierarchy forOrgDN(String orgDN) {
+        String normalized = normalize(orgDN);
+        if (normalized.endsWith("," + normalize(LdapConstants.INTERNAL_GROUPS))) {
+            return forBranch(LdapConstants.INTERNAL_GROUPS);
+        } else if (normalized.endsWith("," + normalize(LdapConstants.EXTERNAL_GROUPS))) {
+            return forBranch(LdapConstants.EXTERNAL_GROUPS);
+        }
+        return null;
+    }
+    
+    /**
+     * Drop the cached snapshot of the branch containing the given DN
+     */
+    public static void invalidate(String dn) {
+        String normalized = normalize(dn);
+        generation.incrementAndGet();
+        for (String branchKey : snapshots.keySet()) {
+            if (normalized.equals(branchKey) || normalized.endsWith("," + branchKey)) {
+                snapshots.remove(branchKey);
+            }
+        }
+    }
+    
+    /**
+     * Drop every cached snapshot
+     */
+    public static void invalidateAll() {
+        generation.incrementAndGet();
+        snapshots.clear();
+    }
+    
+    /**
+     * Build a snapshot from one paged subtree search of the branch, or return null if the search
+     * failed (a partial tree would hide orgs and admins)
+     */
+    public static OrgHierarchy load(String branchDN) {
+        OrgHierarchy hierarchy = new OrgHierarchy(branchDN, System.currentTimeMillis());
+        Map<String, Set<String>> adminsByOrg = new HashMap<>();
+        List<Node> ordered = new ArrayList<>();
+        
+        try (LdapSearchIterator entries = ldapDAO.searchPaged(branchDN, LDAPConnection.SCOPE_SUB,
+                HIERARCHY_FILTER, new String[]{LdapConstants.ATTR_MEMBER})) {
+            while (entries.hasNext()) {
+                LDAPEntry entry = entries.next();
+                String entryDN = entry.getDN();
+                
+                Dn dn = Dn.parse(entryDN);
+                if (dn == null) {
+                    continue;
+                }
+                
+                if (dn.isType(LdapConstants.ATTR_CN)) {
+                    // DomainAdministrator group: remember its member uids against the parent org
+                    Dn orgDN = dn.parent();
+                    if (orgDN != null) {
+                        adminsByOrg.put(orgDN.normalized(), memberUids(entry));
+                    }
+                    continue;
+                }
+                
+                // Skip "ou=groups" entries
+                if (dn.isGroupsContainer()) {
+                    continue;
+                }
+                
+                Node node = new Node(entryDN);
+                hierarchy.nodes.put(normalize(entryDN), node);
+                ordered.add(node);
+            }
+            
+            if (entries.getFailure() != null) {
+                return null;
+            }
+        }
+        
+        // Link parents and children once every org is known (search order is not guaranteed parent-first)
+        ordered.sort(NODE_ORDER);
+        for (Node node : ordered) {
+            String parentDN = Dn.parentOf(node.dn);
+            Node parent = parentDN != null ? hierarchy.nodes.get(normalize(parentDN)) : null;
+            if (parent != null) {
+                node.parent = parent;
+                parent.children.add(node);
+            } else {
+                hierarchy.roots.add(node);
+            }
+        }
+        
+        hierarchy.numberPreorder(ordered.size());
+        
+        Map<String, List<Integer>> adminOrgIds = new HashMap<>();
+        for (Node node : ordered) {
+            Set<String> admins = adminsByOrg.get(normalize(node.dn));
+            if (admins != null) {
+                for (String uid : admins) {
+                    adminOrgIds.computeIfAbsent(uid, key -> new ArrayList<>()).add(node.id);
+                }
+            }
+        }
+        for (Map.Entry<String, List<Integer>> admin : adminOrgIds.entrySet()) {
+            hierarchy.adminOrgsByUid.put(admin.getKey(),
+                admin.getValue().stream().mapToInt(Integer::intValue).sorted().toArray());
+        }
+        
+        return hierarchy;
+    }
+    
+    /**
+     * Check if org is known to this snapshot
+     */
+    public boolean contains(String orgDN) {
+        return nodes.containsKey(normalize(orgDN));
+    }
+    
+    /**
+     * Get the direct sub-organizations of an org
+     */
+    public List<String> getChildren(String orgDN) {
+        List<String> children = new ArrayList<>();
+        Node node = nodes.get(normalize(orgDN));
+        if (node != null) {
+            for (Node child : node.children) {
+                children.add(child.dn);
+            }
+        }
+        return children;
+    }
+    
+    /**
+     * Get all sub-organizations of an org (all levels, parents before children)
+     */
+    public List<String> getDescendants(String orgDN) {
+        return streamDescendants(orgDN).collect(Collectors.toList());
+    }
+    
+    /**
+     * Lazily stream all sub-organizations of an org, in the order of getDescendants
+     */
+    public Stream<String> streamDescendants(String orgDN) {
+        Node node = nodes.get(normalize(orgDN));
+        if (node == null) {
+            return Stream.empty();
+        }
+        return IntStream.range(node.id + 1, node.subtreeEnd).mapToObj(id -> preorder[id].dn);
+    }
+    
+    /**
+     * Get the organizations a user can see in this branch: every org the user administers,
+     * plus all of its sub-orgs (nested) or its direct sub-orgs only.
+     * Each org appears once, in pre-order (parents before children).
+     */
+    public List<String> getVisibleOrgs(String uid, boolean nested) {
+        return streamVisibleOrgs(uid, nested).collect(Collectors.toList());
+    }
+    
+    /**
+     * Lazily stream the organizations a user can see, in the order of getVisibleOrgs.
+     * Only the visibility bitmap (one per call, not kept) is computed up front; DNs are produced
+     * as the stream is consumed.
+     */
+    public Stream<String> streamVisibleOrgs(String uid, boolean nested) {
+        int[] administered = adminOrgsByUid.get(uid);
+        if (administered == null) {
+            return Stream.empty();
+        }
+        
+        BitSet visible = new BitSet(preorder.length);
+        for (int id : administered) {
+            Node node = preorder[id];
+            if (nested) {
+                // Whole subtree is one range; ids ascend, so one already covered by an ancestor is skipped
+                if (!visible.get(node.id)) {
+                    visible.set(node.id, node.subtreeEnd);
+                }
+            } else {
+                visible.set(node.id);
+                for (Node child : node.children) {
+                    visible.set(child.id);
+                }
+            }
+        }
+        
+        return visible.stream().mapToObj(id -> preorder[id].dn);
+    }
+    
+    /**
+     * Lazily stream every organization of the branch (nested) or only the top-level ones,
+     * in pre-order with siblings sorted by DN
+     */
+    public Stream<String> streamAllOrgs(boolean nested) {
+        if (!nested) {
+            return roots.stream().map(root -> root.dn);
+        }
+        return Arrays.stream(preorder).map(node -> node.dn);
+    }
+    
+    /**
+     * Get the top-level organizations of the branch
+     */
+    public List<String> getRoots() {
+        List<String> rootDNs = new ArrayList<>();
+        for (Node root : roots) {
+            rootDNs.add(root.dn);
+        }
+        return rootDNs;
+    }
+    
+    public String getBranchDN() {
+        return branchDN;
+    }
+    
+    /**
+     * Assign pre-order ids, so every subtree covers the ids [id, subtreeEnd)
+     */
+    private void numberPreorder(int size) {
+        preorder = new Node[size];
+        int nextId = 0;
+        Deque<Node> pending = new ArrayDeque<>();
+        for (int i = roots.size() - 1; i >= 0; i--) {
+            pending.push(roots.get(i));
+        }
+        
+        List<Node> visited = new ArrayList<>(size);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            node.id = nextId;
+            preorder[nextId++] = node;
+            visited.add(node);
+            for (int i = node.children.size() - 1; i >= 0; i--) {
+                pending.push(node.children.get(i));
+            }
+        }
+        
+        // Children come after their parent in pre-order, so walking backwards sizes every subtree
+        for (int i = visited.size() - 1; i >= 0; i--) {
+            Node node = visited.get(i);
+            node.subtreeEnd = node.id + 1;
+            for (Node child : node.children) {
+                node.subtreeEnd = Math.max(node.subtreeEnd, child.subtreeEnd);
+            }
+        }
+    }
+    
+    private static Set<String> memberUids(LDAPEntry entry) {
+        Set<String> uids = new HashSet<>();
+        LDAPAttribute memberAttr = entry.getAttribute(LdapConstants.ATTR_MEMBER);
+        if (memberAttr != null) {
+            for (String member : memberAttr.getStringValueArray()) {
+                Dn memberDN = Dn.parse(member);
+                if (memberDN != null && memberDN.isType(LdapConstants.ATTR_UID)) {
+                    uids.add(memberDN.value());
+                }
+            }
+        }
+        return uids;
+    }
+    
+    private boolean isExpired() {
+        return System.currentTimeMillis() - loadedAt >= snapshotTtl();
+    }
+    
+    private static long snapshotTtl() {
+        return DirectoryChangeListener.isLive() ? LIVE_SNAPSHOT_TTL_MS : SNAPSHOT_TTL_MS;
+    }
+    
+    private static String normalize(String dn) {
+        return dn.toLowerCase();
+    }
+    
+    /**
+     * Organization node
+     */
+    private static class Node {
+        private final String dn;
+        private final String key;
+        private Node parent;
+        private final List<Node> children = new ArrayList<>();
+        private int id;
+        private int subtreeEnd;
+        
+        Node(String dn) {
+            this.dn = dn;
+            this.key = normalize(dn);
+        }
+    }
+}
\ No newline at end of file
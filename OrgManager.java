@@ -2,12 +2,22 @@ package com.sreemat.ldap.manager;
 
 import com.novell.ldap.LDAPConnection;
 import com.novell.ldap.LDAPEntry;
+import com.sreemat.ldap.cache.OrgHierarchy;
+import com.sreemat.ldap.cache.OrgNameIndex;
+import com.sreemat.ldap.cache.PermissionCache;
 import com.sreemat.ldap.constants.LdapConstants;
 import com.sreemat.ldap.dao.LdapDAO;
+import com.sreemat.ldap.dao.RollbackIncompleteException;
+import com.sreemat.ldap.utils.Dn;
 import com.sreemat.ldap.utils.PermissionUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Manager class for Organization operations
@@ -36,61 +46,125 @@ public class OrgManager {
             return getAllOrganizationsInBranch(branch, orgName, nested);
         }
         
+        // One subtree search gives the org tree with the admins of every org;
+        // visibility is then decided in memory instead of per-org ancestor reads
+        OrgHierarchy hierarchy = OrgHierarchy.forBranch(branchDN);
+        if (hierarchy == null) {
+            // The branch could not be loaded yet; answer from LDAP rather than with an empty list
+            return getOrganizationsForUserFromServer(uid, branch, orgName, nested);
+        }
+        
         if (orgName != null) {
             // Search for specific organization
             String specificOrgDN = findOrganizationDN(orgName, branch);
-            if (specificOrgDN != null && PermissionUtils.canViewOrganization(uid, specificOrgDN)) {
+            if (specificOrgDN != null && PermissionUtils.isOrgAdminOfParentOrg(uid, specificOrgDN)) {
                 visibleOrgs.add(specificOrgDN);
                 
-                // Add sub-organizations based on nested parameter (only if user can view them)
+                // Every sub-org of a visible org is visible too (admin of it or of an ancestor)
                 if (nested) {
-                    // nested=true: get all sub-orgs (SCOPE_SUB) that user can view
-                    List<String> allSubOrgs = getSubOrganizations(specificOrgDN);
-                    for (String subOrgDN : allSubOrgs) {
-                        if (PermissionUtils.canViewOrganization(uid, subOrgDN)) {
-                            visibleOrgs.add(subOrgDN);
-                        }
-                    }
+                    // nested=true: all sub-orgs
+                    visibleOrgs.addAll(hierarchy.getDescendants(specificOrgDN));
                 } else {
-                    // nested=false: get direct sub-orgs only (SCOPE_ONE) that user can view
-                    List<String> directSubOrgs = getDirectSubOrganizations(specificOrgDN);
-                    for (String subOrgDN : directSubOrgs) {
-                        if (PermissionUtils.canViewOrganization(uid, subOrgDN)) {
-                            visibleOrgs.add(subOrgDN);
-                        }
-                    }
+                    // nested=false: direct sub-orgs only
+                    visibleOrgs.addAll(hierarchy.getChildren(specificOrgDN));
                 }
             }
         } else {
-            // Get organizations where user is admin (and their sub-orgs if they can view them)
-            List<String> userAdminOrgs = getOrganizationsUserAdmins(uid, branch);
-            
-            for (String adminOrgDN : userAdminOrgs) {
-                visibleOrgs.add(adminOrgDN);
-                
-                if (nested) {
-                    // Add all sub-orgs that user can view
-                    List<String> allSubOrgs = getSubOrganizations(adminOrgDN);
-                    for (String subOrgDN : allSubOrgs) {
-                        if (PermissionUtils.canViewOrganization(uid, subOrgDN)) {
-                            visibleOrgs.add(subOrgDN);
-                        }
-                    }
-                } else {
-                    // Add only direct sub-orgs that user can view
-                    List<String> directSubOrgs = getDirectSubOrganizations(adminOrgDN);
-                    for (String subOrgDN : directSubOrgs) {
-                        if (PermissionUtils.canViewOrganization(uid, subOrgDN)) {
-                            visibleOrgs.add(subOrgDN);
-                        }
-                    }
-                }
-            }
+            // Organizations where user is admin, with their sub-orgs, each listed once
+            visibleOrgs.addAll(hierarchy.getVisibleOrgs(uid, nested));
         }
         
         return visibleOrgs;
     }
     
+    /**
+     * Same result as getOrganizationsForUser, computed with LDAP searches instead of the org hierarchy
+     */
+    private List<String> getOrganizationsForUserFromServer(String uid, String branch, String orgName, boolean nested) {
+        Set<String> visibleOrgs = new LinkedHashSet<>();
+        
+        List<String> startOrgs = new ArrayList<>();
+        if (orgName != null) {
+            String specificOrgDN = findOrganizationDN(orgName, branch);
+            if (specificOrgDN != null && PermissionUtils.isOrgAdminOfParentOrg(uid, specificOrgDN)) {
+                startOrgs.add(specificOrgDN);
+            }
+        } else {
+            startOrgs.addAll(getOrganizationsUserAdmins(uid, branch));
+        }
+        
+        for (String orgDN : startOrgs) {
+            visibleOrgs.add(orgDN);
+            visibleOrgs.addAll(nested ? getSubOrganizations(orgDN) : getDirectSubOrganizations(orgDN));
+        }
+        
+        return new ArrayList<>(visibleOrgs);
+    }
+    
+    /**
+     * Stream the organizations that user can view in an order that is the same for every user and
+     * every call while nothing changes, as offset paging needs: the org hierarchy's pre-order with
+     * siblings sorted by DN. Unlike streamOrganizationsForUser, a super admin's branch listing is
+     * taken from the hierarchy instead of the server's search order (or, if the hierarchy cannot be
+     * loaded, read in full and sorted by DN). The stream must be closed.
+     */
+    public Stream<String> streamOrganizationsSorted(String uid, String branch, String orgName, boolean nested) {
+        String branchDN = ldapDAO.getBranchDN(branch);
+        if (branchDN == null || orgName != null || !PermissionUtils.isSuperAdmin(uid)) {
+            return streamOrganizationsForUser(uid, branch, orgName, nested);
+        }
+        
+        OrgHierarchy hierarchy = OrgHierarchy.forBranch(branchDN);
+        if (hierarchy != null) {
+            return hierarchy.streamAllOrgs(nested);
+        }
+        
+        List<String> orgDNs;
+        try (Stream<String> unsorted = streamOrganizationsForUser(uid, branch, null, nested)) {
+            orgDNs = unsorted.collect(Collectors.toList());
+        }
+        orgDNs.sort(String.CASE_INSENSITIVE_ORDER);
+        return orgDNs.stream();
+    }
+    
+    /**
+     * Stream the organizations that user can view, in the same order as getOrganizationsForUser.
+     * For a super admin listing a whole branch the DNs come straight from a paged LDAP search
+     * (in the server's order); everyone else's come lazily from the org hierarchy, in its
+     * DN-sorted pre-order, so the order is the same on every call while the tree is unchanged.
+     * Only a super admin asking for one org, or a branch whose hierarchy could not be loaded,
+     * gets a list built first. The stream must be closed.
+     */
+    public Stream<String> streamOrganizationsForUser(String uid, String branch, String orgName, boolean nested) {
+        String branchDN = ldapDAO.getBranchDN(branch);
+        
+        if (branchDN != null && orgName == null && PermissionUtils.isSuperAdmin(uid)) {
+            int searchScope = nested ? LDAPConnection.SCOPE_SUB : LDAPConnection.SCOPE_ONE;
+            return ldapDAO.stream(branchDN, searchScope, LdapConstants.SEARCH_OU_FILTER, LdapConstants.dnOnly())
+                .map(LDAPEntry::getDN)
+                // Skip the "ou=groups" entries
+                .filter(entryDN -> !Dn.isGroupsContainer(entryDN));
+        }
+        
+        OrgHierarchy hierarchy = branchDN != null && !PermissionUtils.isSuperAdmin(uid)
+            ? OrgHierarchy.forBranch(branchDN) : null;
+        if (hierarchy == null) {
+            return getOrganizationsForUser(uid, branch, orgName, nested).stream();
+        }
+        
+        if (orgName == null) {
+            return hierarchy.streamVisibleOrgs(uid, nested);
+        }
+        
+        String specificOrgDN = findOrganizationDN(orgName, branch);
+        if (specificOrgDN == null || !PermissionUtils.isOrgAdminOfParentOrg(uid, specificOrgDN)) {
+            return Stream.empty();
+        }
+        return Stream.concat(Stream.of(specificOrgDN), nested
+            ? hierarchy.streamDescendants(specificOrgDN)
+            : hierarchy.getChildren(specificOrgDN).stream());
+    }
+    
     /**
      * Get all organizations in branch (for super admin only)
      */
@@ -117,13 +191,11 @@ public class OrgManager {
         } else {
             // Get all organizations in branch
             int searchScope = nested ? LDAPConnection.SCOPE_SUB : LDAPConnection.SCOPE_ONE;
-            List<LDAPEntry> orgEntries = ldapDAO.search(branchDN, searchScope, LdapConstants.SEARCH_OU_FILTER);
+            List<String> orgEntryDNs = ldapDAO.searchDNs(branchDN, searchScope, LdapConstants.SEARCH_OU_FILTER);
             
-            for (LDAPEntry entry : orgEntries) {
-                String entryDN = entry.getDN();
-                
+            for (String entryDN : orgEntryDNs) {
                 // Skip the "ou=groups" entries
-                if (entryDN.contains("ou=groups,ou=groups") || entryDN.startsWith("ou=groups,")) {
+                if (Dn.isGroupsContainer(entryDN)) {
                     continue;
                 }
                 
@@ -140,12 +212,11 @@ public class OrgManager {
     public List<String> getSubOrganizations(String parentOrgDN) {
         List<String> subOrgs = new ArrayList<>();
         
-        List<LDAPEntry> entries = ldapDAO.search(parentOrgDN, LDAPConnection.SCOPE_SUB, LdapConstants.SEARCH_OU_FILTER);
+        List<String> entryDNs = ldapDAO.searchDNs(parentOrgDN, LDAPConnection.SCOPE_SUB, LdapConstants.SEARCH_OU_FILTER);
         
-        for (LDAPEntry entry : entries) {
-            String entryDN = entry.getDN();
+        for (String entryDN : entryDNs) {
             // Exclude "ou=groups" entries and the parent org itself
-            if (!entryDN.startsWith("ou=groups,") && !entryDN.equals(parentOrgDN)) {
+            if (!Dn.isGroupsContainer(entryDN) && !entryDN.equals(parentOrgDN)) {
                 subOrgs.add(entryDN);
             }
         }
@@ -159,12 +230,11 @@ public class OrgManager {
     public List<String> getDirectSubOrganizations(String parentOrgDN) {
         List<String> directSubOrgs = new ArrayList<>();
         
-        List<LDAPEntry> entries = ldapDAO.search(parentOrgDN, LDAPConnection.SCOPE_ONE, LdapConstants.SEARCH_OU_FILTER);
+        List<String> entryDNs = ldapDAO.searchDNs(parentOrgDN, LDAPConnection.SCOPE_ONE, LdapConstants.SEARCH_OU_FILTER);
         
-        for (LDAPEntry entry : entries) {
-            String entryDN = entry.getDN();
+        for (String entryDN : entryDNs) {
             // Exclude "ou=groups" entries
-            if (!entryDN.startsWith("ou=groups,")) {
+            if (!Dn.isGroupsContainer(entryDN)) {
                 directSubOrgs.add(entryDN);
             }
         }
@@ -184,25 +254,10 @@ public class OrgManager {
         String orgDN = "ou=" + orgName + "," + branchDN;
         
         try {
-            // Create organization OU
-            boolean orgCreated = ldapDAO.createOU(orgDN, orgName);
-            if (!orgCreated) {
-                return false;
-            }
-            
-            // Create groups OU inside organization
-            String groupsOUDN = "ou=groups," + orgDN;
-            boolean groupsOUCreated = ldapDAO.createOU(groupsOUDN, "groups");
-            if (!groupsOUCreated) {
-                return false;
-            }
-            
-            // Create domain administrator group
-            String adminGroupDN = "cn=" + LdapConstants.DOMAIN_ADMIN_CN + "," + orgDN;
-            boolean adminGroupCreated = ldapDAO.createGroup(adminGroupDN, LdapConstants.DOMAIN_ADMIN_CN);
-            
-            return adminGroupCreated;
-            
+            return provisionOrganization(orgDN, orgName);
+        } catch (RollbackIncompleteException e) {
+            // Not a plain failure: the caller has to learn which entries are left over
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -216,31 +271,35 @@ public class OrgManager {
         String subOrgDN = "ou=" + subOrgName + "," + parentOrgDN;
         
         try {
-            // Create sub-organization OU
-            boolean subOrgCreated = ldapDAO.createOU(subOrgDN, subOrgName);
-            if (!subOrgCreated) {
-                return false;
-            }
-            
-            // Create groups OU inside sub-organization
-            String groupsOUDN = "ou=groups," + subOrgDN;
-            boolean groupsOUCreated = ldapDAO.createOU(groupsOUDN, "groups");
-            if (!groupsOUCreated) {
-                return false;
-            }
-            
-            // Create domain administrator group for sub-organization
-            String adminGroupDN = "cn=" + LdapConstants.DOMAIN_ADMIN_CN + "," + subOrgDN;
-            boolean adminGroupCreated = ldapDAO.createGroup(adminGroupDN, LdapConstants.DOMAIN_ADMIN_CN);
-            
-            return adminGroupCreated;
-            
+            return provisionOrganization(subOrgDN, subOrgName);
+        } catch (RollbackIncompleteException e) {
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
         }
     }
     
+    /**
+     * Create an organization OU with its groups OU and DomainAdministrator group on one connection.
+     * The two children are pipelined after the OU; on failure what was added is rolled back
+     * (best effort, see LdapDAO.addEntryTree).
+     */
+    private boolean provisionOrganization(String orgDN, String orgName) {
+        String groupsOUDN = "ou=" + LdapConstants.GROUPS_OU + "," + orgDN;
+        String adminGroupDN = "cn=" + LdapConstants.DOMAIN_ADMIN_CN + "," + orgDN;
+        
+        boolean created = ldapDAO.addEntryTree(LdapDAO.ouEntry(orgDN, orgName), Arrays.asList(
+            LdapDAO.ouEntry(groupsOUDN, LdapConstants.GROUPS_OU),
+            LdapDAO.groupEntry(adminGroupDN, LdapConstants.DOMAIN_ADMIN_CN)));
+        
+        if (created) {
+            OrgNameIndex.put(orgDN);
+            OrgHierarchy.invalidate(orgDN);
+        }
+        return created;
+    }
+    
     /**
      * Add organization admin
      */
@@ -248,7 +307,10 @@ public class OrgManager {
         String adminGroupDN = "cn=" + LdapConstants.DOMAIN_ADMIN_CN + "," + orgDN;
         String memberDN = "uid=" + adminUid + "," + adminGroupDN;
         
-        return ldapDAO.addMemberToGroup(adminGroupDN, memberDN);
+        boolean added = ldapDAO.addMemberToGroup(adminGroupDN, memberDN);
+        PermissionCache.invalidate(adminUid, PermissionCache.Role.ORG_ADMIN, orgDN);
+        OrgHierarchy.invalidate(orgDN);
+        return added;
     }
     
     /**
@@ -258,7 +320,10 @@ public class OrgManager {
         String adminGroupDN = "cn=" + LdapConstants.DOMAIN_ADMIN_CN + "," + orgDN;
         String memberDN = "uid=" + adminUid + "," + adminGroupDN;
         
-        return ldapDAO.removeMemberFromGroup(adminGroupDN, memberDN);
+        boolean removed = ldapDAO.removeMemberFromGroup(adminGroupDN, memberDN);
+        PermissionCache.invalidate(adminUid, PermissionCache.Role.ORG_ADMIN, orgDN);
+        OrgHierarchy.invalidate(orgDN);
+        return removed;
     }
     
     /**
@@ -286,21 +351,17 @@ public class OrgManager {
             return adminOrgs;
         }
         
-        // Search all organizations in the branch
-        List<LDAPEntry> orgEntries = ldapDAO.search(branchDN, LDAPConnection.SCOPE_SUB, LdapConstants.SEARCH_OU_FILTER);
+        // Lists every DomainAdministrator group DN in the branch, then asks the server which of them
+        // contain the user, 100 OR-ed member filters per search: O(N) in the number of orgs, no member lists read
+        List<String> administeredDNs = ldapDAO.findAdministeredDNs(uid, branchDN, LdapConstants.DOMAIN_ADMIN_CN);
         
-        for (LDAPEntry entry : orgEntries) {
-            String entryDN = entry.getDN();
-            
+        for (String orgDN : administeredDNs) {
             // Skip "ou=groups" entries
-            if (entryDN.contains("ou=groups,ou=groups") || entryDN.startsWith("ou=groups,")) {
+            if (Dn.isGroupsContainer(orgDN)) {
                 continue;
             }
             
-            // Check if user is org admin of this specific organization (not parent)
-            if (PermissionUtils.isOrgAdmin(uid, entryDN)) {
-                adminOrgs.add(entryDN);
-            }
+            adminOrgs.add(orgDN);
         }
         
         return adminOrgs;
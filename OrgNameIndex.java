@@ -0,0 +1,200 @@
+package com.sreemat.ldap.cache;
+
+import com.novell.ldap.LDAPConnection;
+import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.dao.LdapDAO;
+import com.sreemat.ldap.dao.LdapSearchIterator;
+import com.sreemat.ldap.sync.DirectoryChangeListener;
+import com.sreemat.ldap.utils.Dn;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Incrementally maintained index from (branch, organization name) to organization DN.
+ * Each branch is loaded with one paged DN-only search on first use (or by preload at startup)
+ * and kept current by OrgManager when organizations are created, and by directory change events.
+ * Branches are reloaded after a TTL like OrgHierarchy, so orgs removed while no change feed was
+ * delivering deletes age out; one caller reloads while the others keep using the previous index.
+ */
+public class OrgNameIndex {
+    
+    private static final long TTL_MS = 30000;
+    private static final long LIVE_TTL_MS = 15 * 60 * 1000;
+    
+    private static final LdapDAO ldapDAO = new LdapDAO();
+    
+    // branch DN (lower case) -> loaded index of the branch
+    private static final Map<String, Branch> index = new ConcurrentHashMap<>();
+    // One load per branch at a time
+    private static final Map<String, ReentrantLock> loadLocks = new ConcurrentHashMap<>();
+    // Bumped by clear() so a load that raced with it is not cached
+    private static final AtomicLong generation = new AtomicLong();
+    
+    private OrgNameIndex() {
+    }
+    
+    /**
+     * Load both branches (call at application startup)
+     */
+    public static void preload() {
+        branchIndex(LdapConstants.INTERNAL_GROUPS);
+        branchIndex(LdapConstants.EXTERNAL_GROUPS);
+    }
+    
+    /**
+     * Look up an organization DN by name, or null if the name is not indexed
+     */
+    public static String lookup(String branchDN, String orgName) {
+        Map<String, String> branch = branchIndex(branchDN);
+        return branch != null ? branch.get(orgName) : null;
+    }
+    
+    /**
+     * Record an organization DN (first DN seen for a name wins, as with the subtree search)
+     */
+    public static void put(String orgDN) {
+        String branchKey = branchKeyOf(orgDN);
+        String orgName = orgNameOf(orgDN);
+        if (branchKey == null || orgName == null) {
+            return;
+        }
+        
+        Branch branch = index.get(branchKey);
+        if (branch != null) {
+            branch.names.putIfAbsent(orgName, orgDN);
+        }
+    }
+    
+    /**
+     * Forget an organization DN
+     */
+    public static void remove(String orgDN) {
+        String branchKey = branchKeyOf(orgDN);
+        String orgName = orgNameOf(orgDN);
+        if (branchKey == null || orgName == null) {
+            return;
+        }
+        
+        Branch branch = index.get(branchKey);
+        if (branch != null) {
+            branch.names.remove(orgName, orgDN);
+        }
+    }
+    
+    /**
+     * Drop everything; branches are reloaded on next lookup
+     */
+    public static void clear() {
+        generation.incrementAndGet();
+        index.clear();
+    }
+    
+    /**
+     * Get the index of a branch, loading it if missing or expired (null if it could not be loaded).
+     * The load runs outside the map, so lookups of other branches never wait on it.
+     */
+    private static Map<String, String> branchIndex(String branchDN) {
+        String key = branchDN.toLowerCase();
+        Branch current = index.get(key);
+        if (current != null && !isExpired(current)) {
+            return current.names;
+        }
+        
+        ReentrantLock lock = loadLocks.computeIfAbsent(key, k -> new ReentrantLock());
+        if (current != null) {
+            // Expired: one caller reloads, the others keep using the previous index
+            if (!lock.tryLock()) {
+                return current.names;
+            }
+        } else {
+            lock.lock();
+        }
+        try {
+            Branch latest = index.get(key);
+            if (latest != null && latest != current && !isExpired(latest)) {
+                return latest.names;
+            }
+            
+            long startGeneration = generation.get();
+            Map<String, String> names = load(branchDN);
+            if (names == null) {
+                return current != null ? current.names : null;
+            }
+            
+            // Not cached if clear() ran meanwhile: the load may predate the change that caused it
+            if (generation.get() == startGeneration) {
+                index.put(key, new Branch(names, System.currentTimeMillis()));
+            }
+            return names;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private static boolean isExpired(Branch branch) {
+        long ttl = DirectoryChangeListener.isLive() ? LIVE_TTL_MS : TTL_MS;
+        return System.currentTimeMillis() - branch.loadedAt >= ttl;
+    }
+    
+    private static Map<String, String> load(String branchDN) {
+        Map<String, String> names = new ConcurrentHashMap<>();
+        
+        try (LdapSearchIterator entries = ldapDAO.searchPaged(branchDN, LDAPConnection.SCOPE_SUB,
+                LdapConstants.SEARCH_OU_FILTER, LdapConstants.dnOnly())) {
+            while (entries.hasNext()) {
+                String entryDN = entries.next().getDN();
+                // Skip "ou=groups" entries
+                if (Dn.isGroupsContainer(entryDN)) {
+                    continue;
+                }
+                
+                String orgName = orgNameOf(entryDN);
+                if (orgName != null) {
+                    names.putIfAbsent(orgName, entryDN);
+                }
+            }
+            
+            if (entries.getFailure() != null) {
+                // Incomplete load: don't cache it, retry on next lookup
+                return null;
+            }
+        }
+        
+        return names;
+    }
+    
+    private static String branchKeyOf(String orgDN) {
+        Dn dn = Dn.parse(orgDN);
+        if (dn == null) {
+            return null;
+        }
+        for (String branchDN : new String[]{LdapConstants.INTERNAL_GROUPS, LdapConstants.EXTERNAL_GROUPS}) {
+            if (dn.isBelow(branchDN)) {
+                return branchDN.toLowerCase();
+            }
+        }
+        return null;
+    }
+    
+    private static String orgNameOf(String orgDN) {
+        Dn dn = Dn.parse(orgDN);
+        return dn != null && dn.size() > 1 && dn.isType(LdapConstants.ATTR_OU) ? dn.value() : null;
+    }
+    
+    /**
+     * Loaded index of one branch
+     */
+    private static final class Branch {
+        // org name -> org DN
+        private final Map<String, String> names;
+        private final long loadedAt;
+        
+        Branch(Map<String, String> names, long loadedAt) {
+            this.names = names;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
\ No newline at end of file
@@ -1,15 +1,32 @@
 package com.sreemat.ldap.controller;
 
+import com.sreemat.ldap.dao.DirectoryUnavailableException;
+import com.sreemat.ldap.dao.IncompleteSearchException;
+import com.sreemat.ldap.dao.LdapExecutor;
 import com.sreemat.ldap.dto.ApiResponse;
+import com.sreemat.ldap.dto.JsonStreamWriter;
 import com.sreemat.ldap.dto.OrgResponse;
+import com.sreemat.ldap.dto.PageResponse;
 import com.sreemat.ldap.manager.OrgManager;
+import com.sreemat.ldap.utils.Dn;
+import com.sreemat.ldap.utils.PaginationUtils;
 import com.sreemat.ldap.utils.PermissionUtils;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * REST Controller for Organization operations
@@ -30,11 +47,24 @@ public class OrganizationController {
      * Get organizations for user in specified branch
      */
     @GET
-    public Response getOrganizations(
+    public CompletionStage<Response> getOrganizations(
             @PathParam("branch") String branch,
             @HeaderParam("uid") String uid,
             @QueryParam("name") String orgName,
-            @QueryParam("nested") @DefaultValue("false") boolean includeSubOrgs) {
+            @QueryParam("nested") @DefaultValue("false") boolean includeSubOrgs,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("cursor") String cursor,
+            @QueryParam("stream") @DefaultValue("false") boolean streamOutput) {
+        return LdapExecutor.submit(() -> doGetOrganizations(branch, uid, orgName, includeSubOrgs, limit, cursor,
+                streamOutput))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of getOrganizations, run on the LDAP executor
+     */
+    private Response doGetOrganizations(String branch, String uid, String orgName, boolean includeSubOrgs,
+                                        Integer limit, String cursor, boolean streamOutput) {
         
         try {
             // Validate inputs
@@ -50,33 +80,35 @@ public class OrganizationController {
                     .build();
             }
             
-            // Get organizations
+            // Paginated listing
+            if (limit != null || cursor != null) {
+                return getOrganizationsPage(uid, branch, orgName, includeSubOrgs, limit, cursor);
+            }
+            
+            // Streamed listing
+            if (streamOutput) {
+                return streamOrganizations(uid, branch, orgName, includeSubOrgs);
+            }
+            
+            // Get organizations (with nested=true this already includes every visible sub-org)
             List<String> orgDNs = orgManager.getOrganizationsForUser(uid, branch, orgName, includeSubOrgs);
-            List<OrgResponse> organizations = new ArrayList<>();
-            
-            for (String orgDN : orgDNs) {
-                String extractedOrgName = PermissionUtils.extractOrgName(orgDN);
-                if (extractedOrgName != null) {
-                    OrgResponse orgResponse = new OrgResponse(orgDN, extractedOrgName, branch);
-                    
-                    // Add sub-organizations if nested is true
-                    if (includeSubOrgs) {
-                        List<String> subOrgDNs = orgManager.getSubOrganizations(orgDN);
-                        for (String subOrgDN : subOrgDNs) {
-                            String subOrgName = PermissionUtils.extractOrgName(subOrgDN);
-                            if (subOrgName != null) {
-                                orgResponse.addSubOrg(new OrgResponse(subOrgDN, subOrgName, branch));
-                            }
-                        }
-                    }
-                    
-                    organizations.add(orgResponse);
-                }
+            List<OrgResponse> organizations;
+            
+            if (includeSubOrgs) {
+                // Nest sub-orgs under their parents; no further LDAP searches needed
+                organizations = buildOrgTree(orgDNs, branch);
+            } else {
+                organizations = toOrgResponses(orgDNs, branch);
             }
             
             return Response.ok(ApiResponse.success("Organizations retrieved successfully", organizations))
                     .build();
             
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -90,10 +122,18 @@ public class OrganizationController {
      * Create new organization
      */
     @POST
-    public Response createOrganization(
+    public CompletionStage<Response> createOrganization(
             @PathParam("branch") String branch,
             @HeaderParam("uid") String uid,
             @QueryParam("orgName") String orgName) {
+        return LdapExecutor.submit(() -> doCreateOrganization(branch, uid, orgName))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of createOrganization, run on the LDAP executor
+     */
+    private Response doCreateOrganization(String branch, String uid, String orgName) {
         
         try {
             // Validate inputs
@@ -135,6 +175,11 @@ public class OrganizationController {
                     .build();
             }
             
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -149,11 +194,19 @@ public class OrganizationController {
      */
     @POST
     @Path("/{orgName}/subOrg")
-    public Response createSubOrganization(
+    public CompletionStage<Response> createSubOrganization(
             @PathParam("branch") String branch,
             @PathParam("orgName") String orgName,
             @HeaderParam("uid") String uid,
             @QueryParam("subOrgName") String subOrgName) {
+        return LdapExecutor.submit(() -> doCreateSubOrganization(branch, orgName, uid, subOrgName))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of createSubOrganization, run on the LDAP executor
+     */
+    private Response doCreateSubOrganization(String branch, String orgName, String uid, String subOrgName) {
         
         try {
             // Validate inputs
@@ -203,6 +256,11 @@ public class OrganizationController {
                     .build();
             }
             
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -217,11 +275,19 @@ public class OrganizationController {
      */
     @POST
     @Path("/{orgName}/admins")
-    public Response addOrgAdmin(
+    public CompletionStage<Response> addOrgAdmin(
             @PathParam("branch") String branch,
             @PathParam("orgName") String orgName,
             @HeaderParam("uid") String requesterUid,
             @QueryParam("adminUid") String adminUid) {
+        return LdapExecutor.submit(() -> doAddOrgAdmin(branch, orgName, requesterUid, adminUid))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of addOrgAdmin, run on the LDAP executor
+     */
+    private Response doAddOrgAdmin(String branch, String orgName, String requesterUid, String adminUid) {
         
         try {
             // Validate inputs
@@ -270,6 +336,11 @@ public class OrganizationController {
                     .build();
             }
             
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -284,11 +355,19 @@ public class OrganizationController {
      */
     @DELETE
     @Path("/{orgName}/admins")
-    public Response removeOrgAdmin(
+    public CompletionStage<Response> removeOrgAdmin(
             @PathParam("branch") String branch,
             @PathParam("orgName") String orgName,
             @HeaderParam("uid") String requesterUid,
             @QueryParam("adminUid") String adminUid) {
+        return LdapExecutor.submit(() -> doRemoveOrgAdmin(branch, orgName, requesterUid, adminUid))
+                .exceptionally(this::ldapFailure);
+    }
+    
+    /**
+     * Blocking implementation of removeOrgAdmin, run on the LDAP executor
+     */
+    private Response doRemoveOrgAdmin(String branch, String orgName, String requesterUid, String adminUid) {
         
         try {
             // Validate inputs
@@ -337,6 +416,11 @@ public class OrganizationController {
                     .build();
             }
             
+        } catch (DirectoryUnavailableException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -344,4 +428,152 @@ public class OrganizationController {
                     .build();
         }
     }
+    
+    /**
+     * Get one page of organizations. The page is taken from the visible orgs in their sorted order
+     * (OrgManager.streamOrganizationsSorted), reading only as far as the end of the page.
+     * With nested=true the orgs of the page are nested under their parents within the page.
+     */
+    private Response getOrganizationsPage(String uid, String branch, String orgName, boolean includeSubOrgs,
+                                          Integer limit, String cursor) {
+        if (!PaginationUtils.isValidLimit(limit)) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                .entity(ApiResponse.error("limit must be between 1 and " + PaginationUtils.MAX_LIMIT))
+                .build();
+        }
+        
+        long offset = PaginationUtils.decodeCursor(cursor);
+        if (offset < 0) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                .entity(ApiResponse.error("Invalid cursor"))
+                .build();
+        }
+        
+        // Read one entry past the page to know whether there is a next page
+        List<String> pageDNs;
+        try (Stream<String> orgDNs = orgManager.streamOrganizationsSorted(uid, branch, orgName, includeSubOrgs)) {
+            pageDNs = orgDNs
+                .filter(orgDN -> PermissionUtils.extractOrgName(orgDN) != null)
+                .skip(offset)
+                .limit(limit + 1L)
+                .collect(Collectors.toList());
+        }
+        
+        String nextCursor = null;
+        if (pageDNs.size() > limit) {
+            pageDNs = pageDNs.subList(0, limit);
+            nextCursor = PaginationUtils.encodeCursor(offset + limit);
+        }
+        
+        List<OrgResponse> organizations = includeSubOrgs
+            ? buildOrgTree(pageDNs, branch)
+            : toOrgResponses(pageDNs, branch);
+        
+        return Response.ok(ApiResponse.success("Organizations retrieved successfully",
+                new PageResponse<>(organizations, limit, nextCursor)))
+                .build();
+    }
+    
+    /**
+     * Stream organizations to the client as they are read from LDAP, in the usual
+     * {success, message, data} envelope. Entries are written flat (subOrgs empty) since
+     * a tree cannot be emitted before all of its members are known.
+     * If the search fails midway the response is aborted without closing the envelope,
+     * so the client sees a broken body rather than a short list marked successful.
+     */
+    private Response streamOrganizations(String uid, String branch, String orgName, boolean includeSubOrgs) {
+        StreamingOutput output = out -> {
+            // Holds a pooled connection on this container thread until the body is written
+            LdapExecutor.acquireStream();
+            try {
+                JsonStreamWriter json = new JsonStreamWriter(out);
+                json.beginList("Organizations retrieved successfully");
+                
+                try (Stream<String> orgDNs = orgManager.streamOrganizationsForUser(uid, branch, orgName, includeSubOrgs)) {
+                    Iterator<String> iterator = orgDNs.iterator();
+                    while (iterator.hasNext()) {
+                        String orgDN = iterator.next();
+                        String extractedOrgName = PermissionUtils.extractOrgName(orgDN);
+                        if (extractedOrgName != null) {
+                            json.writeOrg(new OrgResponse(orgDN, extractedOrgName, branch));
+                        }
+                    }
+                } catch (IncompleteSearchException e) {
+                    e.printStackTrace();
+                    throw new IOException("Organization listing aborted", e);
+                }
+                
+                json.endList();
+            } finally {
+                LdapExecutor.releaseStream();
+            }
+        };
+        
+        return Response.ok(output, MediaType.APPLICATION_JSON).build();
+    }
+    
+    /**
+     * Convert org DNs to flat OrgResponses
+     */
+    private List<OrgResponse> toOrgResponses(List<String> orgDNs, String branch) {
+        List<OrgResponse> organizations = new ArrayList<>();
+        for (String orgDN : orgDNs) {
+            String extractedOrgName = PermissionUtils.extractOrgName(orgDN);
+            if (extractedOrgName != null) {
+                organizations.add(new OrgResponse(orgDN, extractedOrgName, branch));
+            }
+        }
+        return organizations;
+    }
+    
+    /**
+     * Build an OrgResponse tree from a flat list of org DNs by grouping them under their parent DN.
+     * Orgs whose parent is not in the list become roots; each org appears once.
+     */
+    private List<OrgResponse> buildOrgTree(List<String> orgDNs, String branch) {
+        Map<String, OrgResponse> responsesByDN = new LinkedHashMap<>();
+        for (String orgDN : orgDNs) {
+            String extractedOrgName = PermissionUtils.extractOrgName(orgDN);
+            if (extractedOrgName != null) {
+                responsesByDN.putIfAbsent(orgDN.toLowerCase(), new OrgResponse(orgDN, extractedOrgName, branch));
+            }
+        }
+        
+        List<OrgResponse> roots = new ArrayList<>();
+        for (OrgResponse orgResponse : responsesByDN.values()) {
+            String orgDN = orgResponse.getDn();
+            String parentDN = Dn.parentOf(orgDN);
+            OrgResponse parent = parentDN != null ? responsesByDN.get(parentDN.toLowerCase()) : null;
+            
+            if (parent != null) {
+                parent.addSubOrg(orgResponse);
+            } else {
+                roots.add(orgResponse);
+            }
+        }
+        
+        return roots;
+    }
+    
+    /**
+     * Map a failed or rejected async handler to an error response
+     */
+    private Response ldapFailure(Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        if (cause instanceof RejectedExecutionException) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Server busy, please retry"))
+                    .build();
+        }
+        if (cause instanceof DirectoryUnavailableException) {
+            cause.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(ApiResponse.error("Directory unavailable, please retry"))
+                    .build();
+        }
+        cause.printStackTrace();
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                .entity(ApiResponse.error("Internal server error: " + cause.getMessage()))
+                .build();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+package com.sreemat.ldap.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response DTO for one page of a list
+ */
+public class PageResponse<T> {
+    private List<T> items;
+    private int limit;
+    private String nextCursor;
+    
+    public PageResponse() {
+        this.items = new ArrayList<>();
+    }
+    
+    public PageResponse(List<T> items, int limit, String nextCursor) {
+        this.items = items;
+        this.limit = limit;
+        this.nextCursor = nextCursor;
+    }
+    
+    // Getters and Setters
+    public List<T> getItems() {
+        return items;
+    }
+    
+    public void setItems(List<T> items) {
+        this.items = items;
+    }
+    
+    public int getLimit() {
+        return limit;
+    }
+    
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+    
+    /**
+     * Cursor of the next page, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+    
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
\ No newline at end of file
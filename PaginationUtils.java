@@ -0,0 +1,62 @@
+package com.sreemat.ldap.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Utility class for list pagination (limit + opaque cursor).
+ * The cursor is an offset into the listing, so every listing that is paged is sorted
+ * (OrgManager.streamOrganizationsSorted, GroupManager.streamGroupsSorted) and pages line up
+ * while nothing changes; entries added or removed between requests shift later pages.
+ *
+ * Cost: each page re-runs the listing and skips the offset, so reading all n entries takes
+ * O(n^2 / limit) work. For a super admin's group listing each page also reads and sorts the
+ * whole branch. The server's Simple Paged Results cookie is not used as the cursor: it is only
+ * valid on the connection that issued it, which goes back to the pool after every request.
+ */
+public class PaginationUtils {
+    
+    public static final int MAX_LIMIT = 1000;
+    
+    private static final String CURSOR_PREFIX = "o:";
+    
+    private PaginationUtils() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+    
+    /**
+     * Check if requested page size is valid
+     */
+    public static boolean isValidLimit(Integer limit) {
+        return limit != null && limit > 0 && limit <= MAX_LIMIT;
+    }
+    
+    /**
+     * Encode the position of the next page as an opaque cursor
+     */
+    public static String encodeCursor(long offset) {
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString((CURSOR_PREFIX + offset).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Decode a cursor into the offset of its page (null cursor = first page).
+     * Returns -1 if the cursor is not one we issued.
+     */
+    public static long decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return 0;
+        }
+        
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if (decoded.startsWith(CURSOR_PREFIX)) {
+                long offset = Long.parseLong(decoded.substring(CURSOR_PREFIX.length()));
+                return offset >= 0 ? offset : -1;
+            }
+        } catch (IllegalArgumentException e) {
+            // Malformed base64 or number
+        }
+        return -1;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,166 @@
+package com.sreemat.ldap.cache;
+
+import com.sreemat.ldap.sync.DirectoryChangeListener;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded LRU cache of permission decisions keyed by (uid, role, DN), with a TTL.
+ * Writes that change a role invalidate the affected entries immediately; so do directory change
+ * events (see CacheInvalidator), which allow a much longer TTL while the change listener is live.
+ */
+public class PermissionCache {
+    
+    /**
+     * Cached role checks
+     */
+    public enum Role {
+        SUPER_ADMIN,
+        ORG_ADMIN,
+        GROUP_ADMIN
+    }
+    
+    private static final int MAX_ENTRIES = 10000;
+    private static final long TTL_MS = 60000;
+    
+    // While the change listener delivers invalidations, entries only expire as a safety net
+    private static final long LIVE_TTL_MS = 15 * 60 * 1000;
+    
+    private static final Map<Key, Decision> decisions = new LinkedHashMap<Key, Decision>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Decision> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    
+    // Bumped on every invalidation so a lookup that raced with it does not cache a stale answer
+    private static final AtomicLong generation = new AtomicLong();
+    
+    private PermissionCache() {
+    }
+    
+    /**
+     * Get a cached decision, or compute it with the loader and cache it.
+     * The loader returns null when it could not decide (e.g. LDAP unavailable); that is answered
+     * as a denial but not cached, so a transient failure does not lock anyone out for a TTL.
+     */
+    public static boolean get(String uid, Role role, String dn, Supplier<Boolean> loader) {
+        Key key = new Key(uid, role, dn);
+        long now = System.currentTimeMillis();
+        
+        synchronized (decisions) {
+            Decision decision = decisions.get(key);
+            if (decision != null && decision.expiresAt > now) {
+                return decision.allowed;
+            }
+        }
+        
+        long startGeneration = generation.get();
+        Boolean loaded = loader.get();
+        if (loaded == null) {
+            return false;
+        }
+        boolean allowed = loaded;
+        
+        synchronized (decisions) {
+            if (generation.get() == startGeneration) {
+                decisions.put(key, new Decision(allowed, now + ttl()));
+            }
+        }
+        return allowed;
+    }
+    
+    /**
+     * Invalidate the decision for one (uid, role, DN)
+     */
+    public static void invalidate(String uid, Role role, String dn) {
+        synchronized (decisions) {
+            generation.incrementAndGet();
+            decisions.remove(new Key(uid, role, dn));
+        }
+    }
+    
+    /**
+     * Invalidate every decision about a role on a DN (e.g. when its admin group changed externally)
+     */
+    public static void invalidate(Role role, String dn) {
+        String normalizedDN = normalize(dn);
+        synchronized (decisions) {
+            generation.incrementAndGet();
+            Iterator<Key> keys = decisions.keySet().iterator();
+            while (keys.hasNext()) {
+                Key key = keys.next();
+                if (key.role == role && key.dn.equals(normalizedDN)) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Invalidate everything
+     */
+    public static void invalidateAll() {
+        synchronized (decisions) {
+            generation.incrementAndGet();
+            decisions.clear();
+        }
+    }
+    
+    private static long ttl() {
+        return DirectoryChangeListener.isLive() ? LIVE_TTL_MS : TTL_MS;
+    }
+    
+    private static String normalize(String dn) {
+        return dn == null ? "" : dn.toLowerCase();
+    }
+    
+    /**
+     * Cache key (uid and DN compared case-insensitively, as LDAP does)
+     */
+    private static final class Key {
+        private final String uid;
+        private final Role role;
+        private final String dn;
+        
+        Key(String uid, Role role, String dn) {
+            this.uid = uid == null ? "" : uid.toLowerCase();
+            this.role = role;
+            this.dn = normalize(dn);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return role == other.role && uid.equals(other.uid) && dn.equals(other.dn);
+        }
+        
+        @Override
+        public int hashCode() {
+            return (uid.hashCode() * 31 + role.hashCode()) * 31 + dn.hashCode();
+        }
+    }
+    
+    /**
+     * Cached decision
+     */
+    private static final class Decision {
+        private final boolean allowed;
+        private final long expiresAt;
+        
+        Decision(boolean allowed, long expiresAt) {
+            this.allowed = allowed;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
\ No newline at end of file
@@ -1,7 +1,11 @@
 package com.sreemat.ldap.utils;
 
+import com.sreemat.ldap.cache.OrgNameIndex;
+import com.sreemat.ldap.cache.PermissionCache;
+import com.sreemat.ldap.cache.SuperAdminCache;
 import com.sreemat.ldap.constants.LdapConstants;
 import com.sreemat.ldap.dao.LdapDAO;
+import com.sreemat.ldap.dao.LdapSearchIterator;
 
 /**
  * Utility class for checking user permissions
@@ -14,7 +18,13 @@ public class PermissionUtils {
      * Check if user is Super Admin
      */
     public static boolean isSuperAdmin(String uid) {
-        return ldapDAO.isMemberOfGroup(uid, LdapConstants.SUPER_ADMIN_GROUP);
+        // In-memory member set; the cached LDAP compare only if it could not be loaded
+        Boolean superAdmin = SuperAdminCache.isSuperAdmin(uid);
+        if (superAdmin != null) {
+            return superAdmin;
+        }
+        return PermissionCache.get(uid, PermissionCache.Role.SUPER_ADMIN, LdapConstants.SUPER_ADMIN_GROUP,
+            () -> ldapDAO.checkMemberOfGroup(uid, LdapConstants.SUPER_ADMIN_GROUP));
     }
     
     /**
@@ -22,7 +32,8 @@ public class PermissionUtils {
      */
     public static boolean isOrgAdmin(String uid, String orgDN) {
         String adminGroupDN = "cn=" + LdapConstants.DOMAIN_ADMIN_CN + "," + orgDN;
-        return ldapDAO.isMemberOfGroup(uid, adminGroupDN);
+        return PermissionCache.get(uid, PermissionCache.Role.ORG_ADMIN, orgDN,
+            () -> ldapDAO.checkMemberOfGroup(uid, adminGroupDN));
     }
     
     /**
@@ -30,12 +41,15 @@ public class PermissionUtils {
      */
     public static boolean isGroupAdmin(String uid, String groupDN) {
         String adminGroupDN = "cn=" + LdapConstants.GROUP_ADMIN_CN + "," + groupDN;
-        return ldapDAO.isMemberOfGroup(uid, adminGroupDN);
+        return PermissionCache.get(uid, PermissionCache.Role.GROUP_ADMIN, groupDN,
+            () -> ldapDAO.checkMemberOfGroup(uid, adminGroupDN));
     }
     
     /**
      * Check if user is Organization Admin for any parent organization (recursive)
-     * Also checks if user has org admin role in any org within the branch
+     * Also checks if user has org admin role in any org within the branch.
+     * Answered through PermissionCache (invalidated on admin changes), never from the OrgHierarchy
+     * snapshot, which may be up to its TTL old and is only used for listings.
      */
     public static boolean isOrgAdminOfParentOrg(String uid, String orgDN) {
         // Check current org
@@ -68,20 +82,17 @@ public class PermissionUtils {
             return false;
         }
         
-        // Search for all organizations in the branch and check if user is admin of any
-        java.util.List<com.novell.ldap.LDAPEntry> orgEntries = ldapDAO.search(branchDN, 
-            com.novell.ldap.LDAPConnection.SCOPE_SUB, LdapConstants.SEARCH_OU_FILTER);
+        // Find every organization whose DomainAdministrator group lists the user, in one filtered lookup
+        java.util.List<String> administeredDNs = ldapDAO.findAdministeredDNs(uid, branchDN, 
+            LdapConstants.DOMAIN_ADMIN_CN);
         
-        for (com.novell.ldap.LDAPEntry entry : orgEntries) {
-            String entryDN = entry.getDN();
+        for (String orgDN : administeredDNs) {
             // Skip "ou=groups" entries
-            if (entryDN.contains("ou=groups,ou=groups") || entryDN.startsWith("ou=groups,")) {
+            if (Dn.isGroupsContainer(orgDN)) {
                 continue;
             }
             
-            if (isOrgAdmin(uid, entryDN)) {
-                return true;
-            }
+            return true;
         }
         
         return false;
@@ -178,18 +189,16 @@ public class PermissionUtils {
      * Returns: ou=testorg1,ou=groups,ou=internal,o=sreemat
      */
     public static String extractOrgDNFromGroup(String groupDN) {
-        if (groupDN == null || !groupDN.startsWith("cn=")) {
+        Dn dn = Dn.parse(groupDN);
+        if (dn == null || !dn.isType(LdapConstants.ATTR_CN)) {
             return null;
         }
         
-        // Find first comma, then skip "ou=groups,"
-        int firstComma = groupDN.indexOf(",");
-        if (firstComma != -1) {
-            String remaining = groupDN.substring(firstComma + 1);
-            // Skip "ou=groups,"
-            if (remaining.startsWith("ou=groups,")) {
-                return remaining.substring("ou=groups,".length());
-            }
+        // Parent must be the "ou=groups" container of the org
+        Dn container = dn.parent();
+        if (container != null && container.size() > 1
+                && container.rdnIs(0, LdapConstants.ATTR_OU, LdapConstants.GROUPS_OU)) {
+            return container.parent().toString();
         }
         return null;
     }
@@ -200,11 +209,9 @@ public class PermissionUtils {
      * Returns: testorg1
      */
     public static String extractOrgName(String orgDN) {
-        if (orgDN != null && orgDN.startsWith("ou=")) {
-            int commaIndex = orgDN.indexOf(",");
-            if (commaIndex > 3) {
-                return orgDN.substring(3, commaIndex);
-            }
+        Dn dn = Dn.parse(orgDN);
+        if (dn != null && dn.size() > 1 && dn.isType(LdapConstants.ATTR_OU)) {
+            return dn.value();
         }
         return null;
     }
@@ -215,11 +222,9 @@ public class PermissionUtils {
      * Returns: testgrp1
      */
     public static String extractGroupName(String groupDN) {
-        if (groupDN != null && groupDN.startsWith("cn=")) {
-            int commaIndex = groupDN.indexOf(",");
-            if (commaIndex > 3) {
-                return groupDN.substring(3, commaIndex);
-            }
+        Dn dn = Dn.parse(groupDN);
+        if (dn != null && dn.size() > 1 && dn.isType(LdapConstants.ATTR_CN)) {
+            return dn.value();
         }
         return null;
     }
@@ -255,20 +260,29 @@ public class PermissionUtils {
             return null;
         }
         
-        // Search recursively in branch for organization with this name
-        java.util.List<com.novell.ldap.LDAPEntry> entries = ldapDAO.search(branchDN, 
-            com.novell.ldap.LDAPConnection.SCOPE_SUB, LdapConstants.SEARCH_OU_FILTER);
+        // Most lookups are answered by the name index
+        String indexedDN = OrgNameIndex.lookup(branchDN, orgName);
+        if (indexedDN != null) {
+            return indexedDN;
+        }
         
-        for (com.novell.ldap.LDAPEntry entry : entries) {
-            String entryDN = entry.getDN();
-            // Skip "ou=groups" entries
-            if (entryDN.contains("ou=groups,ou=groups") || entryDN.startsWith("ou=groups,")) {
-                continue;
-            }
-            
-            String currentOrgName = extractOrgName(entryDN);
-            if (orgName.equals(currentOrgName)) {
-                return entryDN;
+        // Not indexed (e.g. created by another tool): search recursively in branch, stopping at the first match
+        String filter = "(&" + LdapConstants.SEARCH_OU_FILTER
+            + "(" + LdapConstants.ATTR_OU + "=" + LdapDAO.escapeFilterValue(orgName) + "))";
+        try (LdapSearchIterator entries = ldapDAO.searchPaged(branchDN, 
+                com.novell.ldap.LDAPConnection.SCOPE_SUB, filter, LdapConstants.dnOnly())) {
+            while (entries.hasNext()) {
+                String entryDN = entries.next().getDN();
+                // Skip "ou=groups" entries
+                if (Dn.isGroupsContainer(entryDN)) {
+                    continue;
+                }
+                
+                String currentOrgName = extractOrgName(entryDN);
+                if (orgName.equals(currentOrgName)) {
+                    OrgNameIndex.put(entryDN);
+                    return entryDN;
+                }
             }
         }
         
@@ -281,20 +295,17 @@ public class PermissionUtils {
      * Returns: ou=testorg1,ou=groups,ou=internal,o=sreemat
      */
     private static String getParentOrgDN(String orgDN) {
-        if (orgDN == null || !orgDN.startsWith("ou=")) {
+        Dn dn = Dn.parse(orgDN);
+        if (dn == null || !dn.isType(LdapConstants.ATTR_OU)) {
             return null;
         }
         
-        int firstComma = orgDN.indexOf(",");
-        if (firstComma != -1) {
-            String parentDN = orgDN.substring(firstComma + 1);
-            // Check if we've reached the groups level
-            if (parentDN.equals(LdapConstants.INTERNAL_GROUPS) || 
-                parentDN.equals(LdapConstants.EXTERNAL_GROUPS)) {
-                return null;
-            }
-            return parentDN;
+        Dn parent = dn.parent();
+        // Check if we've reached the groups level
+        if (parent == null || parent.equalsIgnoreCase(LdapConstants.INTERNAL_GROUPS)
+                || parent.equalsIgnoreCase(LdapConstants.EXTERNAL_GROUPS)) {
+            return null;
         }
-        return null;
+        return parent.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,201 @@
+package com.sreemat.ldap.replica;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Search filter evaluated against replica entries.
+ * Supports the subset of RFC 4515 the application uses: and, or, not, equality and presence.
+ * Anything else (substrings, ordering, approximate, extensible) is rejected by parse(), and
+ * the search is sent to the server instead. All matching is case-insensitive.
+ */
+abstract class ReplicaFilter {
+    
+    /**
+     * Check if an entry (attribute name -> lower case value -> value) matches
+     */
+    abstract boolean matches(Map<String, Map<String, String>> attributes);
+    
+    /**
+     * Parse a filter, or return null if it uses anything the replica cannot evaluate
+     */
+    static ReplicaFilter parse(String filter) {
+        if (filter == null) {
+            return null;
+        }
+        try {
+            Parser parser = new Parser(filter.trim());
+            ReplicaFilter parsed = parser.filter();
+            return parser.atEnd() ? parsed : null;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+    
+    private static final class Parser {
+        private final String text;
+        private int pos;
+        
+        Parser(String text) {
+            this.text = text;
+        }
+        
+        boolean atEnd() {
+            return pos == text.length();
+        }
+        
+        ReplicaFilter filter() {
+            expect('(');
+            ReplicaFilter parsed;
+            char c = text.charAt(pos);
+            if (c == '&' || c == '|') {
+                pos++;
+                List<ReplicaFilter> parts = new ArrayList<>();
+                while (text.charAt(pos) == '(') {
+                    parts.add(filter());
+                }
+                parsed = c == '&' ? new And(parts) : new Or(parts);
+            } else if (c == '!') {
+                pos++;
+                parsed = new Not(filter());
+            } else {
+                parsed = item();
+            }
+            expect(')');
+            return parsed;
+        }
+        
+        private ReplicaFilter item() {
+            int equals = text.indexOf('=', pos);
+            int close = text.indexOf(')', pos);
+            if (equals == -1 || equals > close) {
+                throw new IllegalArgumentException("Not a simple item");
+            }
+            
+            String attribute = text.substring(pos, equals);
+            if (attribute.isEmpty() || attribute.endsWith(">") || attribute.endsWith("<")
+                    || attribute.endsWith("~") || attribute.contains(":")) {
+                throw new IllegalArgumentException("Unsupported match type");
+            }
+            
+            String rawValue = text.substring(equals + 1, close);
+            pos = close;
+            if (rawValue.equals("*")) {
+                return new Present(attribute.toLowerCase());
+            }
+            if (rawValue.indexOf('*') != -1) {
+                throw new IllegalArgumentException("Substring match");
+            }
+            return new Equals(attribute.toLowerCase(), unescape(rawValue).toLowerCase());
+        }
+        
+        private void expect(char c) {
+            if (text.charAt(pos) != c) {
+                throw new IllegalArgumentException("Expected " + c + " at " + pos);
+            }
+            pos++;
+        }
+        
+        private static String unescape(String value) {
+            if (value.indexOf('\\') == -1) {
+                return value;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\') {
+                    bytes.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                    i += 2;
+                } else {
+                    byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                    bytes.write(encoded, 0, encoded.length);
+                }
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+    
+    private static final class And extends ReplicaFilter {
+        private final Collection<ReplicaFilter> parts;
+        
+        And(Collection<ReplicaFilter> parts) {
+            this.parts = parts;
+        }
+        
+        @Override
+        boolean matches(Map<String, Map<String, String>> attributes) {
+            for (ReplicaFilter part : parts) {
+                if (!part.matches(attributes)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    private static final class Or extends ReplicaFilter {
+        private final Collection<ReplicaFilter> parts;
+        
+        Or(Collection<ReplicaFilter> parts) {
+            this.parts = parts;
+        }
+        
+        @Override
+        boolean matches(Map<String, Map<String, String>> attributes) {
+            for (ReplicaFilter part : parts) {
+                if (part.matches(attributes)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    private static final class Not extends ReplicaFilter {
+        private final ReplicaFilter part;
+        
+        Not(ReplicaFilter part) {
+            this.part = part;
+        }
+        
+        @Override
+        boolean matches(Map<String, Map<String, String>> attributes) {
+            return !part.matches(attributes);
+        }
+    }
+    
+    private static final class Present extends ReplicaFilter {
+        private final String attribute;
+        
+        Present(String attribute) {
+            this.attribute = attribute;
+        }
+        
+        @Override
+        boolean matches(Map<String, Map<String, String>> attributes) {
+            // Every entry has an object class, even when the replica did not keep other attributes
+            Map<String, String> values = attributes.get(attribute);
+            return attribute.equals("objectclass") || (values != null && !values.isEmpty());
+        }
+    }
+    
+    private static final class Equals extends ReplicaFilter {
+        private final String attribute;
+        private final String value;
+        
+        Equals(String attribute, String value) {
+            this.attribute = attribute;
+            this.value = value;
+        }
+        
+        @Override
+        boolean matches(Map<String, Map<String, String>> attributes) {
+            Map<String, String> values = attributes.get(attribute);
+            return values != null && values.containsKey(value);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,22 @@
+package com.sreemat.ldap.dao;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when a multi-entry add failed and could not be fully undone, naming the entries that
+ * are still in the directory so they can be cleaned up
+ */
+public class RollbackIncompleteException extends RuntimeException {
+    
+    private final List<String> leftBehind;
+    
+    public RollbackIncompleteException(String rootDN, List<String> leftBehind) {
+        super("Adding " + rootDN + " failed and rollback left behind: " + String.join("; ", leftBehind));
+        this.leftBehind = Collections.unmodifiableList(leftBehind);
+    }
+    
+    public List<String> getLeftBehind() {
+        return leftBehind;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,63 @@
+package com.sreemat.ldap.dao;
+
+import com.novell.ldap.LDAPControl;
+import com.novell.ldap.asn1.ASN1Integer;
+import com.novell.ldap.asn1.ASN1Object;
+import com.novell.ldap.asn1.ASN1OctetString;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.LBERDecoder;
+import com.novell.ldap.asn1.LBEREncoder;
+
+/**
+ * Simple Paged Results control (RFC 2696)
+ *
+ * realSearchControlValue ::= SEQUENCE {
+ *     size    INTEGER,
+ *     cookie  OCTET STRING }
+ */
+public class SimplePagedResultsControl extends LDAPControl {
+    
+    public static final String OID = "1.2.840.113556.1.4.319";
+    
+    private static final byte[] EMPTY_COOKIE = new byte[0];
+    
+    /**
+     * Build the request control for the next page
+     */
+    public SimplePagedResultsControl(int pageSize, byte[] cookie, boolean critical) {
+        super(OID, critical, encode(pageSize, cookie));
+    }
+    
+    private static byte[] encode(int pageSize, byte[] cookie) {
+        ASN1Sequence sequence = new ASN1Sequence(2);
+        sequence.add(new ASN1Integer(pageSize));
+        sequence.add(new ASN1OctetString(cookie != null ? cookie : EMPTY_COOKIE));
+        return sequence.getEncoding(new LBEREncoder());
+    }
+    
+    /**
+     * Extract the cookie from the server's response controls.
+     * Returns null when there are no more pages (no control or empty cookie).
+     */
+    public static byte[] getCookie(LDAPControl[] responseControls) {
+        if (responseControls == null) {
+            return null;
+        }
+        
+        for (LDAPControl control : responseControls) {
+            if (!OID.equals(control.getID()) || control.getValue() == null) {
+                continue;
+            }
+            
+            ASN1Object decoded = new LBERDecoder().decode(control.getValue());
+            if (decoded instanceof ASN1Sequence && ((ASN1Sequence) decoded).size() > 1) {
+                ASN1Object cookie = ((ASN1Sequence) decoded).get(1);
+                if (cookie instanceof ASN1OctetString) {
+                    byte[] value = ((ASN1OctetString) cookie).byteValue();
+                    return value.length > 0 ? value : null;
+                }
+            }
+        }
+        return null;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,42 @@
+package com.sreemat.ldap.controller;
+
+import com.sreemat.ldap.cache.CacheInvalidator;
+import com.sreemat.ldap.cache.MembershipIndex;
+import com.sreemat.ldap.cache.OrgNameIndex;
+import com.sreemat.ldap.cache.SuperAdminCache;
+import com.sreemat.ldap.dao.LdapDAO;
+import com.sreemat.ldap.dao.LdapExecutor;
+import com.sreemat.ldap.replica.DirectoryReplica;
+import com.sreemat.ldap.sync.DirectoryChangeListener;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Starts the directory change feed and the caches that follow it when the application starts,
+ * and stops them (and releases LDAP connections) when it shuts down.
+ */
+@WebListener
+public class StartupListener implements ServletContextListener {
+    
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        // Subscribers first, so the listener's first RESYNC reaches them; the replica before the
+        // invalidator, so caches rebuilt on an event already see the update
+        DirectoryReplica.install();
+        MembershipIndex.install();
+        CacheInvalidator.install();
+        SuperAdminCache.install();
+        OrgNameIndex.preload();
+        DirectoryChangeListener.start();
+    }
+    
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        DirectoryChangeListener.stop();
+        SuperAdminCache.shutdown();
+        LdapExecutor.shutdown();
+        LdapDAO.getPool().close();
+    }
+}
\ No newline at end of file
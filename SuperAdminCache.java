@@ -0,0 +1,158 @@
+package com.sreemat.ldap.cache;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.sreemat.ldap.constants.LdapConstants;
+import com.sreemat.ldap.dao.LdapDAO;
+import com.sreemat.ldap.sync.DirectoryChangeBus;
+import com.sreemat.ldap.sync.DirectoryChangeEvent;
+import com.sreemat.ldap.sync.DirectoryChangeListener;
+import com.sreemat.ldap.utils.Dn;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The members of SUPER_ADMIN_GROUP as an immutable set, swapped atomically on refresh, so
+ * a super-admin check is a volatile read and a hash lookup.
+ *
+ * Refreshed when the group changes (directory change events) and on a short interval
+ * (longer while the change listener is live).
+ */
+public class SuperAdminCache {
+    
+    private static final long REFRESH_INTERVAL_MS = 10000;
+    private static final long LIVE_REFRESH_INTERVAL_MS = 5 * 60 * 1000;
+    
+    private static final LdapDAO ldapDAO = new LdapDAO();
+    
+    // Lower-case uids; null until the first successful load
+    private static volatile Snapshot snapshot;
+    private static final AtomicBoolean refreshing = new AtomicBoolean();
+    // Set by every refresh request, cleared by the refresh that reads after it
+    private static final AtomicBoolean dirty = new AtomicBoolean();
+    private static volatile ScheduledExecutorService scheduler;
+    
+    private SuperAdminCache() {
+    }
+    
+    /**
+     * Subscribe to directory change events, load the set and start the interval refresh
+     * (call at application startup)
+     */
+    public static synchronized void install() {
+        if (scheduler != null) {
+            return;
+        }
+        DirectoryChangeBus.subscribe(SuperAdminCache::onChange);
+        refresh();
+        
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "super-admin-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (dirty.get() || isStale(snapshot)) {
+                refresh();
+            }
+        }, REFRESH_INTERVAL_MS, REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stop the interval refresh (call at application shutdown)
+     */
+    public static synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+    
+    /**
+     * Check if user is a super admin, or null if the group could not be loaded
+     */
+    public static Boolean isSuperAdmin(String uid) {
+        Snapshot current = snapshot;
+        if (current == null || (scheduler == null && isStale(current))) {
+            // Not installed: refresh inline, one caller at a time; others use the previous set
+            refresh();
+            current = snapshot;
+        }
+        return current != null ? current.uids.contains(uid.toLowerCase()) : null;
+    }
+    
+    /**
+     * Reload the group now. If a refresh is already running, it reads once more after the
+     * current read, so a change made while it was in flight is never missed.
+     */
+    public static void refresh() {
+        dirty.set(true);
+        while (dirty.get() && refreshing.compareAndSet(false, true)) {
+            try {
+                dirty.set(false);
+                LDAPEntry group = ldapDAO.searchSingle(LdapConstants.SUPER_ADMIN_GROUP, LDAPConnection.SCOPE_BASE,
+                    LdapConstants.SEARCH_GROUP_FILTER, new String[]{LdapConstants.ATTR_MEMBER});
+                if (group == null) {
+                    // Keep serving the previous set rather than locking every super admin out;
+                    // the interval refresh tries again
+                    dirty.set(true);
+                    return;
+                }
+                snapshot = new Snapshot(memberUids(group), System.currentTimeMillis());
+            } finally {
+                refreshing.set(false);
+            }
+        }
+    }
+    
+    private static void onChange(DirectoryChangeEvent event) {
+        if (event.getType() == DirectoryChangeEvent.Type.RESYNC
+                || (event.getType() == DirectoryChangeEvent.Type.ADMIN_CHANGED
+                    && LdapConstants.SUPER_ADMIN_GROUP.equalsIgnoreCase(event.getDn()))) {
+            refresh();
+        }
+    }
+    
+    private static boolean isStale(Snapshot current) {
+        long interval = DirectoryChangeListener.isLive() ? LIVE_REFRESH_INTERVAL_MS : REFRESH_INTERVAL_MS;
+        return current == null || System.currentTimeMillis() - current.loadedAt >= interval;
+    }
+    
+    /**
+     * uids of the conventional "uid=<uid>,<groupDN>" member values
+     */
+    private static Set<String> memberUids(LDAPEntry group) {
+        Set<String> uids = new HashSet<>();
+        LDAPAttribute members = group.getAttribute(LdapConstants.ATTR_MEMBER);
+        if (members != null) {
+            for (String member : members.getStringValueArray()) {
+                Dn memberDN = Dn.parse(member);
+                if (memberDN != null && memberDN.isType(LdapConstants.ATTR_UID) && memberDN.size() > 1
+                        && memberDN.parent().equalsIgnoreCase(group.getDN())) {
+                    uids.add(memberDN.value().toLowerCase());
+                }
+            }
+        }
+        return Collections.unmodifiableSet(uids);
+    }
+    
+    /**
+     * Loaded set of super admins
+     */
+    private static final class Snapshot {
+        private final Set<String> uids;
+        private final long loadedAt;
+        
+        Snapshot(Set<String> uids, long loadedAt) {
+            this.uids = uids;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
\ No newline at end of file